@@ -0,0 +1,192 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.util.Log;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Content-addressed cache of downloaded objects.  Files are named by a digest of the bucket, key
+ * and the object's ETag, or its size and LastModified for object stores which do not return a
+ * sensible ETag, so a changed object never matches a stale file.  File modification times track
+ * access order and the least recently used files are evicted to stay within the byte budget.
+ * Partial downloads live alongside complete files but do not count towards the budget.
+ */
+final class BlobCache {
+    private static final String TAG = "BlobCache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private final File directory;
+    private final File legacyDirectory;
+    private final long maxBytes;
+    private boolean legacyFilesDeleted;
+
+    /**
+     * @param cacheDir application cache directory; blobs are stored in a subdirectory and
+     *                 stray temporary files left in cacheDir by earlier versions are removed
+     */
+    BlobCache(File cacheDir, long maxBytes) {
+        this(cacheDir, "blobs", maxBytes);
+    }
+
+    /** Cache stored in the named subdirectory of cacheDir, e.g., for derived thumbnails. */
+    BlobCache(File cacheDir, String name, long maxBytes) {
+        this.directory = new File(cacheDir, name);
+        this.legacyDirectory = cacheDir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Leading parts of ids of objects in bucketName at endpoint.  Objects of the default endpoint
+     * keep the ids they had before endpoints were part of them.
+     */
+    static String namespace(String endpoint, String bucketName) {
+        // digest separates its parts with NUL, so this matches passing both parts separately
+        return endpoint == null || endpoint.isEmpty() ? bucketName :
+                endpoint + '\0' + bucketName;
+    }
+
+    static String id(String endpoint, String bucketName, String key, ObjectMetadata metadata) {
+        String validator = metadata.getETag();
+        if (validator == null) {
+            // Some object stores do not return a sensible ETag, e.g., S3Proxy with
+            // filesystem backend.
+            Date lastModified = metadata.getLastModified();
+            validator = metadata.getContentLength() + ":" +
+                    (lastModified == null ? "" : lastModified.getTime());
+        }
+        return digest(namespace(endpoint, bucketName), key, validator);
+    }
+
+    /** Hex MD5 of the NUL-separated parts, used as a cache file name. */
+    static String digest(String... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    /** Return the cached file for id, marking it as recently used, or null if absent. */
+    File get(String id, long contentLength) {
+        File file = new File(directory, id);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (file.length() != contentLength) {
+            Log.w(TAG, "Discarding truncated cache file: " + id);
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /** Like {@link #get(String, long)} for files whose length is not known in advance. */
+    File get(String id) {
+        File file = new File(directory, id);
+        if (!file.isFile()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /** File to download id into before calling {@link #commit}; it persists across attempts. */
+    File partialFile(String id) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory);
+        }
+        return new File(directory, id + PARTIAL_SUFFIX);
+    }
+
+    /** Move a completely downloaded partial file into the cache and evict older files. */
+    File commit(File partialFile, String id) throws IOException {
+        File file = new File(directory, id);
+        if (!partialFile.renameTo(file)) {
+            partialFile.delete();
+            throw new IOException("Could not rename " + partialFile + " to " + file);
+        }
+        trim(file);
+        return file;
+    }
+
+    /** Evict least recently used files until the cache fits its budget, never evicting pinned. */
+    synchronized void trim(File pinned) {
+        if (!legacyFilesDeleted) {
+            deleteTempFiles(legacyDirectory);
+            legacyFilesDeleted = true;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = b.lastModified();
+                long y = a.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        long total = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(PARTIAL_SUFFIX)) {
+                // bounded by PartialDownloads
+                continue;
+            }
+            total += file.length();
+            if (total > maxBytes && !file.equals(pinned)) {
+                Log.d(TAG, "Evicting: " + file.getName());
+                total -= file.length();
+                file.delete();
+            }
+        }
+    }
+
+    private static void deleteTempFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads objects into the blob cache.  Small objects use a single GET while large objects are
+ * split into byte ranges which several workers fetch concurrently with {@link RangedDownload},
+ * writing each range at its offset in a preallocated file.  Progress is persisted in
+ * {@link PartialDownloads} so that an interrupted download resumes with ranged GETs guarded by
+ * If-Match; if the object changed, the partial download is discarded and the next attempt
+ * starts over.
+ */
+final class BlobDownloader {
+    private static final String TAG = "BlobDownloader";
+    static final long PARALLEL_THRESHOLD = 16 * 1024 * 1024;
+    static final int CONCURRENCY = 4;
+    /** How often single-stream downloads persist their progress. */
+    private static final long RECORD_INTERVAL = 1024 * 1024;
+
+    /** Receives progress from worker threads and tells workers when to stop. */
+    interface Listener {
+        void onProgress(long bytesTransferred);
+
+        boolean isCancelled();
+    }
+
+    private final AmazonS3 client;
+    private final String endpoint;
+    private final BlobCache cache;
+    private final PartialDownloads partials;
+    private final ThreadPoolExecutor executor;
+    /** Cache ids currently being downloaded. */
+    private final Set<String> inProgress = new HashSet<>();
+
+    /** @param endpoint of client, which namespaces the cache ids */
+    BlobDownloader(AmazonS3 client, String endpoint, BlobCache cache, PartialDownloads partials) {
+        this.client = client;
+        this.endpoint = endpoint;
+        this.cache = cache;
+        this.partials = partials;
+        this.executor = new ThreadPoolExecutor(CONCURRENCY, CONCURRENCY, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Download the object described by metadata into the blob cache, resuming an earlier
+     * attempt if possible.
+     *
+     * @return the cached file or null if the listener cancelled the download
+     * @throws IOException if the object changed since metadata was fetched or on local errors
+     */
+    File download(String bucketName, String key, ObjectMetadata metadata, Listener listener)
+            throws IOException {
+        String id = BlobCache.id(endpoint, bucketName, key, metadata);
+        // The prefetcher and the user may request the same object; only one may write its
+        // partial file and the other then finds the committed file.
+        synchronized (inProgress) {
+            while (!inProgress.add(id)) {
+                try {
+                    inProgress.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for: " + key);
+                }
+            }
+        }
+        try {
+            File cached = cache.get(id, metadata.getContentLength());
+            Metrics.lookup(Metrics.BLOB_CACHE, cached != null);
+            if (cached != null) {
+                return cached;
+            }
+            return download(id, bucketName, key, metadata, listener);
+        } finally {
+            synchronized (inProgress) {
+                inProgress.remove(id);
+                inProgress.notifyAll();
+            }
+        }
+    }
+
+    private File download(String id, String bucketName, String key, ObjectMetadata metadata,
+            final Listener listener) throws IOException {
+        final long contentLength = metadata.getContentLength();
+        final TransferEngine.ProgressThrottle throttle =
+                new TransferEngine.ProgressThrottle(contentLength);
+        Listener throttled = new Listener() {
+            @Override
+            public void onProgress(long bytesTransferred) {
+                if (throttle.shouldReport(bytesTransferred, bytesTransferred == contentLength)) {
+                    listener.onProgress(bytesTransferred);
+                }
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return listener.isCancelled();
+            }
+        };
+        String eTag = metadata.getETag();
+        boolean ranged = contentLength >= PARALLEL_THRESHOLD;
+        int numParts = ranged ? RangedDownload.numParts(contentLength) : 0;
+        File file = cache.partialFile(id);
+
+        PartialDownloads.Entry entry = partials.get(id);
+        if (entry == null || entry.contentLength != contentLength ||
+                entry.parts.length != numParts || !file.isFile()) {
+            for (String abandoned : partials.start(id, bucketName, key, eTag, contentLength,
+                    numParts)) {
+                cache.partialFile(abandoned).delete();
+            }
+            entry = new PartialDownloads.Entry(id, contentLength, 0, new boolean[numParts]);
+        } else {
+            Log.i(TAG, "resuming " + key + " at " + entry.bytesWritten + " bytes");
+        }
+
+        boolean completed;
+        try {
+            if (ranged) {
+                completed = downloadRanges(bucketName, key, eTag, entry, file, throttled);
+            } else {
+                completed = downloadSingle(bucketName, key, eTag, entry, file, throttled);
+            }
+        } catch (RangedDownload.ChangedException ce) {
+            partials.remove(id);
+            file.delete();
+            throw ce;
+        }
+        if (!completed) {
+            return null;
+        }
+        partials.remove(id);
+        return cache.commit(file, id);
+    }
+
+    private boolean downloadSingle(String bucketName, String key, String eTag,
+            PartialDownloads.Entry entry, File file, final Listener listener)
+            throws IOException {
+        long contentLength = entry.contentLength;
+        long position = entry.bytesWritten;
+        if (position >= contentLength) {
+            return true;
+        }
+        GetObjectRequest request = RangedDownload.newRequest(bucketName, key, eTag);
+        if (position > 0) {
+            request.setRange(position, contentLength - 1);
+        }
+        long start = System.nanoTime();
+        S3Object object = client.getObject(request);
+        if (object == null) {
+            throw new RangedDownload.ChangedException(key);
+        }
+        Metrics.time(Metrics.FIRST_BYTE, start);
+        if (position > 0 && object.getObjectMetadata().getContentLength() == contentLength) {
+            Log.w(TAG, "Range ignored, restarting download: " + key);
+            position = 0;
+        }
+        S3ObjectInputStream is = object.getObjectContent();
+        final String id = entry.id;
+        // positions written and persisted, updated from the callback
+        final long[] written = {position};
+        final long[] recorded = {position};
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(position);
+            position = TransferEngine.copy(is, raf.getChannel(), position, contentLength,
+                    new TransferEngine.Callback() {
+                        @Override
+                        public void onWritten(long position, int count) {
+                            written[0] = position;
+                            listener.onProgress(position);
+                            if (position - recorded[0] >= RECORD_INTERVAL) {
+                                partials.updateBytesWritten(id, position);
+                                recorded[0] = position;
+                            }
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return listener.isCancelled();
+                        }
+                    });
+            if (listener.isCancelled()) {
+                is.abort();
+                return false;
+            }
+        } catch (IOException ioe) {
+            is.abort();
+            throw ioe;
+        } finally {
+            is.close();
+            if (written[0] != recorded[0]) {
+                partials.updateBytesWritten(id, written[0]);
+            }
+        }
+        if (position != contentLength) {
+            throw new IOException("Short download for " + key + ": expected " + contentLength +
+                    " bytes, received " + position);
+        }
+        Metrics.transfer(Metrics.GET, start, contentLength - entry.bytesWritten);
+        return true;
+    }
+
+    private boolean downloadRanges(String bucketName, String key, String eTag,
+            final PartialDownloads.Entry entry, File file, final Listener listener)
+            throws IOException {
+        int remaining = 0;
+        for (boolean part : entry.parts) {
+            if (!part) {
+                ++remaining;
+            }
+        }
+        Log.d(TAG, "downloading " + key + " in " + remaining + " of " + entry.parts.length +
+                " ranges");
+        return RangedDownload.download(client, executor, CONCURRENCY, bucketName, key, eTag,
+                entry.contentLength, entry.parts, file, new RangedDownload.Listener() {
+                    @Override
+                    public void onProgress(long bytesTransferred) {
+                        listener.onProgress(bytesTransferred);
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return listener.isCancelled();
+                    }
+
+                    @Override
+                    public void onFirstByte(long startNanos) {
+                        Metrics.time(Metrics.FIRST_BYTE, startNanos);
+                    }
+
+                    @Override
+                    public void onPartComplete(int part, long startNanos, long length) {
+                        partials.completePart(entry.id, part, length);
+                        Metrics.transfer(Metrics.GET, startNanos, length);
+                    }
+                });
+    }
+}
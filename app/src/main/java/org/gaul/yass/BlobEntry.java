@@ -0,0 +1,86 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One row of a delimited listing: an object or common prefix named relative to the listed
+ * prefix.  Rows carry only primitives besides the name so that large prefixes stay compact.
+ */
+final class BlobEntry implements Comparable<BlobEntry> {
+    final String name;
+    /** Object size in bytes, or -1 for folders. */
+    final long size;
+    /** Milliseconds since the epoch, or 0 when unknown. */
+    final long lastModified;
+    final boolean folder;
+
+    private BlobEntry(String name, long size, long lastModified, boolean folder) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.folder = folder;
+    }
+
+    static BlobEntry object(String name, long size, long lastModified) {
+        return new BlobEntry(name, size, lastModified, false);
+    }
+
+    static BlobEntry folder(String name) {
+        return new BlobEntry(name, -1, 0, true);
+    }
+
+    /** Whether a row with the same name needs to be rebound to display other. */
+    boolean sameContents(BlobEntry other) {
+        return size == other.size && lastModified == other.lastModified &&
+                folder == other.folder;
+    }
+
+    @Override
+    public int compareTo(BlobEntry other) {
+        return name.compareTo(other.name);
+    }
+
+    /**
+     * Merge sorted entries into the sorted list.  Subsequent listing pages usually sort after
+     * everything already present so this is normally an append.
+     */
+    static void mergeSorted(List<BlobEntry> sorted, List<BlobEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (sorted.isEmpty() || sorted.get(sorted.size() - 1).compareTo(entries.get(0)) <= 0) {
+            sorted.addAll(entries);
+            return;
+        }
+        List<BlobEntry> merged = new ArrayList<>(sorted.size() + entries.size());
+        int i = 0;
+        int j = 0;
+        while (i < sorted.size() && j < entries.size()) {
+            if (sorted.get(i).compareTo(entries.get(j)) <= 0) {
+                merged.add(sorted.get(i++));
+            } else {
+                merged.add(entries.get(j++));
+            }
+        }
+        merged.addAll(sorted.subList(i, sorted.size()));
+        merged.addAll(entries.subList(j, entries.size()));
+        sorted.clear();
+        sorted.addAll(merged);
+    }
+}
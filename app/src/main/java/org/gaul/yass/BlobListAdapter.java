@@ -0,0 +1,303 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Recycled rows for a sorted listing.  Refreshing the same prefix diffs the old and new entries
+ * with a single merge pass, which is linear since both are sorted by name, and notifies only the
+ * ranges which were inserted, removed or changed so that unchanged rows are not rebound.
+ */
+final class BlobListAdapter extends RecyclerView.Adapter<BlobListAdapter.ViewHolder> {
+    interface OnEntryClickListener {
+        void onEntryClick(BlobEntry entry);
+
+        void onEntryLongClick(BlobEntry entry);
+    }
+
+    private final Context context;
+    private final OnEntryClickListener listener;
+    private final ThumbnailLoader thumbnails;
+    private List<BlobEntry> entries = new ArrayList<>();
+    private String prefix;
+    /** Names of the selected rows. */
+    private Set<String> selected = new HashSet<>();
+
+    BlobListAdapter(Context context, OnEntryClickListener listener, ThumbnailLoader thumbnails) {
+        this.context = context;
+        this.listener = listener;
+        this.thumbnails = thumbnails;
+    }
+
+    static final class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView thumbnail;
+        final TextView name;
+        final TextView details;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            thumbnail = (ImageView) itemView.findViewById(R.id.blob_thumbnail);
+            name = (TextView) itemView.findViewById(R.id.blob_name);
+            details = (TextView) itemView.findViewById(R.id.blob_details);
+        }
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.blob_list_item, parent, false);
+        final ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    listener.onEntryClick(entries.get(position));
+                }
+            }
+        });
+        view.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return false;
+                }
+                listener.onEntryLongClick(entries.get(position));
+                return true;
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        BlobEntry entry = entries.get(position);
+        holder.itemView.setActivated(selected.contains(entry.name));
+        holder.name.setText(entry.name);
+        if (!entry.folder && Prefetcher.isImage(entry.name)) {
+            holder.thumbnail.setVisibility(View.VISIBLE);
+            thumbnails.load(prefix + entry.name, entry, holder.thumbnail);
+        } else {
+            thumbnails.cancel(holder.thumbnail);
+            holder.thumbnail.setVisibility(View.GONE);
+        }
+        if (entry.folder) {
+            holder.details.setVisibility(View.GONE);
+            return;
+        }
+        String details = Formatter.formatShortFileSize(context, entry.size);
+        if (entry.lastModified != 0) {
+            details += "  " + DateUtils.formatDateTime(context, entry.lastModified,
+                    DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_YEAR |
+                    DateUtils.FORMAT_SHOW_TIME);
+        }
+        holder.details.setText(details);
+        holder.details.setVisibility(View.VISIBLE);
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        thumbnails.cancel(holder.thumbnail);
+    }
+
+    @Override
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    BlobEntry getEntry(int position) {
+        return entries.get(position);
+    }
+
+    String getPrefix() {
+        return prefix;
+    }
+
+    int getSelectedCount() {
+        return selected.size();
+    }
+
+    /** Selected entries in display order. */
+    List<BlobEntry> getSelectedEntries() {
+        List<BlobEntry> result = new ArrayList<>(selected.size());
+        for (BlobEntry entry : entries) {
+            if (selected.contains(entry.name)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    void toggleSelection(BlobEntry entry) {
+        if (!selected.remove(entry.name)) {
+            selected.add(entry.name);
+        }
+        int position = Collections.binarySearch(entries, entry);
+        if (position >= 0) {
+            notifyItemChanged(position);
+        }
+    }
+
+    void selectAll() {
+        for (BlobEntry entry : entries) {
+            selected.add(entry.name);
+        }
+        notifyItemRangeChanged(0, entries.size());
+    }
+
+    void clearSelection() {
+        if (!selected.isEmpty()) {
+            selected.clear();
+            notifyItemRangeChanged(0, entries.size());
+        }
+    }
+
+    /**
+     * Display sorted entries for prefix.  Entries for another prefix replace everything while
+     * entries for the displayed prefix are diffed against the current rows.
+     */
+    void setEntries(String prefix, List<BlobEntry> newEntries) {
+        List<BlobEntry> oldEntries = entries;
+        entries = new ArrayList<>(newEntries);
+        if (!prefix.equals(this.prefix)) {
+            this.prefix = prefix;
+            selected.clear();
+            notifyDataSetChanged();
+            return;
+        }
+        if (!selected.isEmpty()) {
+            // forget selected rows which no longer exist
+            Set<String> retained = new HashSet<>();
+            for (BlobEntry entry : entries) {
+                if (selected.contains(entry.name)) {
+                    retained.add(entry.name);
+                }
+            }
+            selected = retained;
+        }
+        dispatchDiff(oldEntries, entries);
+    }
+
+    /** Merge another sorted page of the displayed prefix into the current rows. */
+    void addEntries(List<BlobEntry> page) {
+        if (page.isEmpty()) {
+            return;
+        }
+        int oldSize = entries.size();
+        if (oldSize == 0 || entries.get(oldSize - 1).compareTo(page.get(0)) <= 0) {
+            entries.addAll(page);
+            notifyItemRangeInserted(oldSize, page.size());
+            return;
+        }
+        List<BlobEntry> oldEntries = new ArrayList<>(entries);
+        BlobEntry.mergeSorted(entries, page);
+        dispatchDiff(oldEntries, entries);
+    }
+
+    /**
+     * Notify the changes between two name-sorted lists.  Positions are relative to the rows
+     * after applying all earlier notifications, as RecyclerView expects.
+     */
+    private void dispatchDiff(List<BlobEntry> oldEntries, List<BlobEntry> newEntries) {
+        RangeNotifier notifier = new RangeNotifier();
+        int i = 0;
+        int j = 0;
+        int position = 0;
+        while (i < oldEntries.size() || j < newEntries.size()) {
+            int cmp;
+            if (i == oldEntries.size()) {
+                cmp = 1;
+            } else if (j == newEntries.size()) {
+                cmp = -1;
+            } else {
+                cmp = oldEntries.get(i).compareTo(newEntries.get(j));
+            }
+            if (cmp < 0) {
+                notifier.add(RangeNotifier.REMOVED, position);
+                ++i;
+            } else if (cmp > 0) {
+                notifier.add(RangeNotifier.INSERTED, position);
+                ++j;
+                ++position;
+            } else {
+                if (!oldEntries.get(i).sameContents(newEntries.get(j))) {
+                    notifier.add(RangeNotifier.CHANGED, position);
+                }
+                ++i;
+                ++j;
+                ++position;
+            }
+        }
+        notifier.flush();
+    }
+
+    /** Coalesces consecutive single-row notifications into range notifications. */
+    private final class RangeNotifier {
+        static final int INSERTED = 1;
+        static final int REMOVED = 2;
+        static final int CHANGED = 3;
+
+        private int type;
+        private int start;
+        private int count;
+
+        void add(int type, int position) {
+            // successive removals all happen at the same position
+            int next = type == REMOVED ? start : start + count;
+            if (type != this.type || position != next) {
+                flush();
+                this.type = type;
+                this.start = position;
+            }
+            ++count;
+        }
+
+        void flush() {
+            if (count == 0) {
+                return;
+            }
+            switch (type) {
+                case INSERTED:
+                    notifyItemRangeInserted(start, count);
+                    break;
+                case REMOVED:
+                    notifyItemRangeRemoved(start, count);
+                    break;
+                case CHANGED:
+                    notifyItemRangeChanged(start, count);
+                    break;
+                default:
+                    throw new AssertionError(type);
+            }
+            count = 0;
+        }
+    }
+}
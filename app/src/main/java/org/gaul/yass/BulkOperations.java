@@ -0,0 +1,318 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Operations on many keys at once.  Selected prefixes expand to every key beneath them.  Deletes
+ * are batched into multi-object delete requests, copies and moves use server-side copies and
+ * downloads share one queue drained by several workers, reporting aggregate progress.
+ */
+final class BulkOperations {
+    private static final String TAG = "BulkOperations";
+    /** Most keys S3 accepts in one multi-object delete. */
+    static final int MAX_DELETE_KEYS = 1000;
+    private static final int CONCURRENCY = 4;
+
+    /** Receives progress from worker threads and tells workers when to stop. */
+    interface Listener {
+        void onProgress(long done, long total);
+
+        boolean isCancelled();
+    }
+
+    static final class Result {
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+    }
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final BlobDownloader downloader;
+    private final char[] passphrase;
+
+    /** @param passphrase decrypts downloaded objects, null if none are encrypted */
+    BulkOperations(AmazonS3 client, String bucketName, BlobDownloader downloader,
+            char[] passphrase) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.downloader = downloader;
+        this.passphrase = passphrase;
+    }
+
+    /**
+     * Expand selected entries, named by their full key, into objects.  Folders expand to every
+     * object beneath them, including the prefix marker itself.
+     *
+     * @return the objects or null if the listener cancelled the listing
+     */
+    List<BlobEntry> expand(List<BlobEntry> selected, final Listener listener) {
+        final List<BlobEntry> objects = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        for (BlobEntry entry : selected) {
+            if (entry.folder) {
+                prefixes.add(entry.name);
+            } else {
+                objects.add(entry);
+            }
+        }
+        for (String prefix : prefixes) {
+            boolean complete = ObjectLister.list(client, bucketName, prefix, false, 0,
+                    Metrics.LIST_STATS, new ObjectLister.PageHandler() {
+                        @Override
+                        public boolean onPage(ObjectListing page) {
+                            objects.addAll(ObjectLister.objects(page));
+                            if (listener.isCancelled()) {
+                                return false;
+                            }
+                            listener.onProgress(objects.size(), 0);
+                            return true;
+                        }
+                    });
+            if (!complete) {
+                return null;
+            }
+        }
+        return objects;
+    }
+
+    /** Delete objects in batches of {@link #MAX_DELETE_KEYS}. */
+    Result delete(List<BlobEntry> objects, Listener listener) {
+        List<String> keys = new ArrayList<>(objects.size());
+        for (BlobEntry object : objects) {
+            keys.add(object.name);
+        }
+        Result result = new Result();
+        deleteKeys(keys, result, listener);
+        return result;
+    }
+
+    private void deleteKeys(List<String> keys, Result result, Listener listener) {
+        for (int i = 0; i < keys.size(); i += MAX_DELETE_KEYS) {
+            if (listener.isCancelled()) {
+                return;
+            }
+            List<String> batch = keys.subList(i, Math.min(i + MAX_DELETE_KEYS, keys.size()));
+            List<DeleteObjectsRequest.KeyVersion> keyVersions = new ArrayList<>(batch.size());
+            for (String key : batch) {
+                keyVersions.add(new DeleteObjectsRequest.KeyVersion(key));
+            }
+            try {
+                // quiet mode only returns failures
+                client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                        .withKeys(keyVersions)
+                        .withQuiet(true));
+                result.succeeded.addAndGet(batch.size());
+            } catch (MultiObjectDeleteException mode) {
+                for (MultiObjectDeleteException.DeleteError error : mode.getErrors()) {
+                    Log.e(TAG, "Error deleting: " + error.getKey() + " " + error.getMessage());
+                }
+                result.failed.addAndGet(mode.getErrors().size());
+                result.succeeded.addAndGet(batch.size() - mode.getErrors().size());
+            } catch (AmazonClientException ace) {
+                Log.e(TAG, "Error deleting " + batch.size() + " keys: " + ace.getMessage());
+                result.failed.addAndGet(batch.size());
+            }
+            listener.onProgress(i + batch.size(), keys.size());
+        }
+    }
+
+    /**
+     * Copy objects from sourcePrefix to the same relative names under destinationPrefix with
+     * server-side copies.  Moves then delete the sources which were copied successfully.
+     */
+    Result copy(List<BlobEntry> objects, final String sourcePrefix,
+            final String destinationPrefix, boolean move, final Listener listener)
+            throws IOException {
+        final Result result = new Result();
+        final List<String> copied = new ArrayList<>();
+        final AtomicLong done = new AtomicLong();
+        final long total = objects.size();
+        List<Runnable> tasks = new ArrayList<>(objects.size());
+        for (final BlobEntry object : objects) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    String destination = destinationPrefix +
+                            object.name.substring(sourcePrefix.length());
+                    if (destination.equals(object.name)) {
+                        result.failed.incrementAndGet();
+                        return;
+                    }
+                    try {
+                        client.copyObject(bucketName, object.name, bucketName, destination);
+                        synchronized (copied) {
+                            copied.add(object.name);
+                        }
+                        result.succeeded.incrementAndGet();
+                    } catch (AmazonClientException ace) {
+                        Log.e(TAG, "Error copying: " + object.name + " " + ace.getMessage());
+                        result.failed.incrementAndGet();
+                    }
+                    listener.onProgress(done.incrementAndGet(), total);
+                }
+            });
+        }
+        runAll(tasks, listener);
+        if (move && !listener.isCancelled()) {
+            Result deleted = new Result();
+            deleteKeys(copied, deleted, listener);
+            result.failed.addAndGet(deleted.failed.get());
+        }
+        return result;
+    }
+
+    /**
+     * Download objects through the blob cache and copy them to the same relative names under
+     * directory.  Progress is the sum of bytes transferred over all objects.
+     */
+    Result download(List<BlobEntry> objects, final String sourcePrefix, final File directory,
+            final Listener listener) throws IOException {
+        final Result result = new Result();
+        long size = 0;
+        for (BlobEntry object : objects) {
+            size += Math.max(0, object.size);
+        }
+        final long total = size;
+        final AtomicLong done = new AtomicLong();
+        final String root = directory.getCanonicalPath() + File.separator;
+        List<Runnable> tasks = new ArrayList<>(objects.size());
+        for (final BlobEntry object : objects) {
+            if (object.name.endsWith("/")) {
+                // prefix markers have no contents
+                continue;
+            }
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    final long[] reported = {0};
+                    try {
+                        File target = new File(directory,
+                                object.name.substring(sourcePrefix.length()));
+                        if (!target.getCanonicalPath().startsWith(root)) {
+                            throw new IOException("Key escapes download directory");
+                        }
+                        ObjectMetadata metadata = client.getObjectMetadata(bucketName,
+                                object.name);
+                        File file = downloader.download(bucketName, object.name, metadata,
+                                new BlobDownloader.Listener() {
+                                    @Override
+                                    public void onProgress(long bytesTransferred) {
+                                        long delta = bytesTransferred - reported[0];
+                                        reported[0] = bytesTransferred;
+                                        listener.onProgress(done.addAndGet(delta), total);
+                                    }
+
+                                    @Override
+                                    public boolean isCancelled() {
+                                        return listener.isCancelled();
+                                    }
+                                });
+                        if (file == null) {
+                            return;
+                        }
+                        if (ObjectTransform.isTransformed(metadata)) {
+                            ObjectTransform.decodeTo(file, createParent(target), passphrase);
+                        } else {
+                            copyFile(file, target);
+                        }
+                        result.succeeded.incrementAndGet();
+                    } catch (AmazonClientException ace) {
+                        Log.e(TAG, "Error downloading: " + object.name + " " + ace.getMessage());
+                        result.failed.incrementAndGet();
+                    } catch (IOException ioe) {
+                        Log.e(TAG, "Error downloading: " + object.name + " " + ioe.getMessage());
+                        result.failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        runAll(tasks, listener);
+        return result;
+    }
+
+    private static void copyFile(File source, File target) throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(createParent(target)).getChannel()) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private static File createParent(File target) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory: " + parent);
+        }
+        return target;
+    }
+
+    /** Run tasks on a shared queue drained by several workers, skipping them once cancelled. */
+    private static void runAll(List<Runnable> tasks, final Listener listener)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+        try {
+            List<Future<?>> futures = new ArrayList<>(tasks.size());
+            for (final Runnable task : tasks) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!listener.isCancelled()) {
+                            task.run();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    throw new IOException(ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ie);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
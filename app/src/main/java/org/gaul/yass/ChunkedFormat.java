@@ -0,0 +1,415 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Container for client-side compressed and encrypted objects.  The plaintext is split into
+ * chunks of CHUNK_SIZE bytes which are deflated when that makes them smaller and, given a
+ * passphrase, sealed with AES-GCM.  An index of chunk offsets at the end lets a reader decode
+ * any chunk alone, so a plaintext range maps to a byte range of the stored object, and neither
+ * side holds more than a few chunks in memory.
+ *
+ * <pre>
+ * header:  magic[8] version[1] flags[1] chunkSize[4] fileId[16] noncePrefix[8]
+ * chunk:   chunkFlags[1] payload
+ * index:   offset[8] for each chunk
+ * trailer: chunkCount[4] plainLength[8] indexOffset[8] magic[8]
+ * </pre>
+ *
+ * The key is derived from the passphrase with PBKDF2 salted by the random fileId, and each
+ * chunk's nonce is noncePrefix followed by its index.  The associated data binds every chunk to
+ * the header, its index, its flags and whether it is the last chunk, so chunks cannot be
+ * reordered, truncated or altered without failing authentication.  Integers are big-endian.
+ */
+final class ChunkedFormat {
+    private static final byte[] MAGIC = "YASSCHK1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    static final int FLAG_COMPRESSED = 1;
+    static final int FLAG_ENCRYPTED = 2;
+    private static final int CHUNK_DEFLATED = 1;
+    static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int FILE_ID_SIZE = 16;
+    private static final int NONCE_PREFIX_SIZE = 8;
+    private static final int HEADER_SIZE = 8 + 1 + 1 + 4 + FILE_ID_SIZE + NONCE_PREFIX_SIZE;
+    private static final int TRAILER_SIZE = 4 + 8 + 8 + 8;
+    private static final int TAG_BITS = 128;
+    private static final int KEY_BITS = 256;
+    private static final int PBKDF2_ITERATIONS = 10000;
+
+    private ChunkedFormat() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /**
+     * Encode in into out, deflating chunks if compress and encrypting them if passphrase is not
+     * null.
+     *
+     * @return the plaintext length
+     */
+    static long encode(InputStream in, File out, boolean compress, char[] passphrase)
+            throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] fileId = new byte[FILE_ID_SIZE];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        random.nextBytes(fileId);
+        random.nextBytes(noncePrefix);
+        int flags = (compress ? FLAG_COMPRESSED : 0) | (passphrase != null ? FLAG_ENCRYPTED : 0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).put((byte) VERSION).put((byte) flags).putInt(CHUNK_SIZE)
+                .put(fileId).put(noncePrefix);
+        Codec codec = new Codec(header.array(), noncePrefix,
+                passphrase == null ? null : deriveKey(passphrase, fileId));
+        Deflater deflater = compress ? new Deflater() : null;
+
+        byte[] current = new byte[CHUNK_SIZE];
+        byte[] next = new byte[CHUNK_SIZE];
+        byte[] deflated = compress ? new byte[CHUNK_SIZE] : null;
+        long[] offsets = new long[16];
+        int count = 0;
+        long plainLength = 0;
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(out),
+                TransferEngine.SMALL_BUFFER_SIZE)) {
+            os.write(header.array());
+            long position = HEADER_SIZE;
+            int currentLength = readFully(in, current);
+            // read one chunk ahead to know which chunk is the last; empty input has one chunk
+            while (true) {
+                int nextLength = currentLength == CHUNK_SIZE ? readFully(in, next) : 0;
+                boolean last = nextLength == 0;
+
+                int chunkFlags = 0;
+                byte[] body = current;
+                int bodyLength = currentLength;
+                if (deflater != null) {
+                    int length = deflate(deflater, current, currentLength, deflated);
+                    if (length != -1) {
+                        chunkFlags = CHUNK_DEFLATED;
+                        body = deflated;
+                        bodyLength = length;
+                    }
+                }
+                byte[] payload = codec.seal(count, last, chunkFlags, body, bodyLength);
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, 2 * count);
+                }
+                offsets[count++] = position;
+                os.write(chunkFlags);
+                os.write(payload);
+                position += 1 + payload.length;
+                plainLength += currentLength;
+                if (last) {
+                    break;
+                }
+                byte[] swap = current;
+                current = next;
+                next = swap;
+                currentLength = nextLength;
+            }
+
+            ByteBuffer index = ByteBuffer.allocate(8 * count + TRAILER_SIZE);
+            for (int i = 0; i < count; ++i) {
+                index.putLong(offsets[i]);
+            }
+            index.putInt(count).putLong(plainLength).putLong(position).put(MAGIC);
+            os.write(index.array());
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return plainLength;
+    }
+
+    /** Deflate length bytes of in into out, returning -1 if that would not save space. */
+    private static int deflate(Deflater deflater, byte[] in, int length, byte[] out) {
+        deflater.reset();
+        deflater.setInput(in, 0, length);
+        deflater.finish();
+        int position = 0;
+        while (!deflater.finished() && position < length) {
+            position += deflater.deflate(out, position, length - position);
+        }
+        return deflater.finished() && position < length ? position : -1;
+    }
+
+    /** Random access to the chunks of an encoded file. */
+    static final class Reader {
+        private final FileChannel channel;
+        private final byte[] fileId;
+        private final int chunkSize;
+        private final boolean compressed;
+        private final boolean encrypted;
+        private final long plainLength;
+        private final long indexOffset;
+        private final long[] offsets;
+        private final Codec codec;
+
+        /**
+         * @param passphrase required if the file is encrypted
+         * @throws IOException if the file is not a valid container or passphrase is missing
+         */
+        Reader(FileChannel channel, char[] passphrase) throws IOException {
+            this.channel = channel;
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Not an encoded file");
+            }
+            ByteBuffer header = read(0, HEADER_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not an encoded file");
+            }
+            int version = header.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version: " + version);
+            }
+            int flags = header.get();
+            chunkSize = header.getInt();
+            fileId = new byte[FILE_ID_SIZE];
+            header.get(fileId);
+            byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+            header.get(noncePrefix);
+            compressed = (flags & FLAG_COMPRESSED) != 0;
+            encrypted = (flags & FLAG_ENCRYPTED) != 0;
+
+            ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+            int count = trailer.getInt();
+            plainLength = trailer.getLong();
+            indexOffset = trailer.getLong();
+            trailer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE ||
+                    plainLength < 0 || count != Math.max(1, (plainLength + chunkSize - 1) /
+                            chunkSize) ||
+                    indexOffset + 8L * count + TRAILER_SIZE != size) {
+                throw new IOException("Corrupt trailer");
+            }
+            offsets = new long[count];
+            ByteBuffer index = read(indexOffset, 8 * count);
+            long previous = HEADER_SIZE - 1;
+            for (int i = 0; i < count; ++i) {
+                offsets[i] = index.getLong();
+                // each chunk holds at least its flags byte
+                if (offsets[i] <= previous || offsets[i] >= indexOffset) {
+                    throw new IOException("Corrupt index");
+                }
+                previous = offsets[i];
+            }
+
+            SecretKey key = null;
+            if (encrypted) {
+                if (passphrase == null) {
+                    throw new IOException("Passphrase required for encrypted object");
+                }
+                key = deriveKey(passphrase, fileId);
+            }
+            byte[] headerBytes = header.array();
+            codec = new Codec(headerBytes, noncePrefix, key);
+        }
+
+        /** Random identifier chosen when the file was encoded. */
+        byte[] fileId() {
+            return fileId.clone();
+        }
+
+        long plainLength() {
+            return plainLength;
+        }
+
+        boolean isCompressed() {
+            return compressed;
+        }
+
+        boolean isEncrypted() {
+            return encrypted;
+        }
+
+        int chunkCount() {
+            return offsets.length;
+        }
+
+        /** Index of the chunk holding plaintext offset. */
+        int chunkAt(long offset) {
+            return (int) Math.min(offsets.length - 1, offset / chunkSize);
+        }
+
+        /** Decode chunk index, verifying it if encrypted. */
+        byte[] readChunk(int index) throws IOException {
+            long start = offsets[index];
+            long end = index + 1 < offsets.length ? offsets[index + 1] : indexOffset;
+            ByteBuffer record = read(start, (int) (end - start));
+            int chunkFlags = record.get();
+            byte[] payload = new byte[record.remaining()];
+            record.get(payload);
+            boolean last = index == offsets.length - 1;
+            byte[] body = codec.open(index, last, chunkFlags, payload);
+            int length = (int) (last ? plainLength - (long) index * chunkSize : chunkSize);
+            if ((chunkFlags & CHUNK_DEFLATED) == 0) {
+                if (body.length != length) {
+                    throw new IOException("Corrupt chunk " + index);
+                }
+                return body;
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(body);
+                byte[] plain = new byte[length];
+                int position = 0;
+                while (position < length && !inflater.finished()) {
+                    int count = inflater.inflate(plain, position, length - position);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    position += count;
+                }
+                if (position != length || !inflater.finished()) {
+                    throw new IOException("Corrupt chunk " + index);
+                }
+                return plain;
+            } catch (DataFormatException dfe) {
+                throw new IOException("Corrupt chunk " + index, dfe);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /** Write the whole plaintext to out chunk by chunk. */
+        void decodeTo(OutputStream out) throws IOException {
+            for (int i = 0; i < offsets.length; ++i) {
+                out.write(readChunk(i));
+            }
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) == -1) {
+                    throw new EOFException("Truncated encoded file");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /** Seals and opens chunk payloads; a pass-through without a key. */
+    private static final class Codec {
+        private final byte[] header;
+        private final byte[] noncePrefix;
+        private final SecretKey key;
+        private final Cipher cipher;
+
+        Codec(byte[] header, byte[] noncePrefix, SecretKey key) throws IOException {
+            this.header = header;
+            this.noncePrefix = noncePrefix;
+            this.key = key;
+            try {
+                this.cipher = key == null ? null : Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException gse) {
+                throw new IOException(gse);
+            }
+        }
+
+        byte[] seal(int index, boolean last, int chunkFlags, byte[] body, int length)
+                throws IOException {
+            if (key == null) {
+                return Arrays.copyOf(body, length);
+            }
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key,
+                        new GCMParameterSpec(TAG_BITS, nonce(index)));
+                cipher.updateAAD(aad(index, last, chunkFlags));
+                return cipher.doFinal(body, 0, length);
+            } catch (GeneralSecurityException gse) {
+                throw new IOException(gse);
+            }
+        }
+
+        byte[] open(int index, boolean last, int chunkFlags, byte[] payload)
+                throws IOException {
+            if (key == null) {
+                return payload;
+            }
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key,
+                        new GCMParameterSpec(TAG_BITS, nonce(index)));
+                cipher.updateAAD(aad(index, last, chunkFlags));
+                return cipher.doFinal(payload);
+            } catch (GeneralSecurityException gse) {
+                throw new IOException("Wrong passphrase or tampered chunk " + index, gse);
+            }
+        }
+
+        private byte[] nonce(int index) {
+            return ByteBuffer.allocate(NONCE_PREFIX_SIZE + 4).put(noncePrefix).putInt(index)
+                    .array();
+        }
+
+        private byte[] aad(int index, boolean last, int chunkFlags) {
+            return ByteBuffer.allocate(header.length + 4 + 1 + 1).put(header).putInt(index)
+                    .put((byte) (last ? 1 : 0)).put((byte) chunkFlags).array();
+        }
+    }
+
+    private static SecretKey deriveKey(char[] passphrase, byte[] salt) throws IOException {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            byte[] key = factory.generateSecret(new PBEKeySpec(passphrase, salt,
+                    PBKDF2_ITERATIONS, KEY_BITS)).getEncoded();
+            return new SecretKeySpec(key, "AES");
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        }
+    }
+
+    /** Read until buffer is full or in is exhausted, returning the bytes read. */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int position = 0;
+        while (position < buffer.length) {
+            int count = in.read(buffer, position, buffer.length - position);
+            if (count == -1) {
+                break;
+            }
+            position += count;
+        }
+        return position;
+    }
+}
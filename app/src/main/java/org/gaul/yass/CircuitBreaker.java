@@ -0,0 +1,108 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Stops requests to an endpoint after several consecutive failures so that a down endpoint
+ * does not keep the radio busy.  Each set of credentials for an endpoint has its own breaker,
+ * so that credentials the endpoint rejects pause only the profiles using them.  After a failure
+ * threshold the breaker opens for an interval which doubles, with jitter, each time a probe
+ * fails.  Once the interval passes it lets a single probe through and closes again if that
+ * succeeds.  State lives in memory; a new process starts closed and reopens after the same
+ * threshold.
+ */
+final class CircuitBreaker {
+    static final int CLOSED = 0;
+    static final int OPEN = 1;
+    static final int HALF_OPEN = 2;
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_OPEN_MILLIS = 30 * 1000;
+    private static final long MAX_OPEN_MILLIS = 30 * 60 * 1000;
+
+    private static final Map<String, CircuitBreaker> breakers = new HashMap<>();
+
+    private final Random random = new Random();
+    private int state = CLOSED;
+    private int failures;
+    /** Consecutive times the breaker opened without a successful probe. */
+    private int opens;
+    private long openUntil;
+
+    /**
+     * Breaker shared by every client of endpoint with these credentials; a null endpoint means
+     * the SDK default endpoint.
+     */
+    static synchronized CircuitBreaker forCredentials(String endpoint, String accessKey,
+            String secretKey) {
+        // a digest so that the map holds no secrets
+        String key = BlobCache.digest(endpoint == null ? "" : endpoint, accessKey, secretKey);
+        CircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            breaker = new CircuitBreaker();
+            breakers.put(key, breaker);
+        }
+        return breaker;
+    }
+
+    /**
+     * Whether a request may be sent now; moves an expired open breaker to half-open.  A
+     * half-open breaker allows requests until one succeeds or fails, so callers send one at a
+     * time until it closes.
+     */
+    synchronized boolean allowRequest(long now) {
+        if (state == OPEN && now >= openUntil) {
+            state = HALF_OPEN;
+        }
+        return state != OPEN;
+    }
+
+    synchronized int state() {
+        return state;
+    }
+
+    /** When an open breaker next allows a probe, or 0 if it is not open. */
+    synchronized long openUntil() {
+        return state == OPEN ? openUntil : 0;
+    }
+
+    synchronized void recordSuccess() {
+        state = CLOSED;
+        failures = 0;
+        opens = 0;
+    }
+
+    /** @return whether this failure opened the breaker */
+    synchronized boolean recordFailure(long now) {
+        if (state == OPEN) {
+            return false;
+        }
+        if (state == CLOSED && ++failures < FAILURE_THRESHOLD) {
+            return false;
+        }
+        long interval = Math.min(MAX_OPEN_MILLIS, MIN_OPEN_MILLIS << Math.min(opens, 16));
+        ++opens;
+        // up to half again so that several devices do not probe in lockstep
+        openUntil = now + interval + (long) (random.nextDouble() * interval / 2);
+        state = OPEN;
+        failures = 0;
+        return true;
+    }
+}
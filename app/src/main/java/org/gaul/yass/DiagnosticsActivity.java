@@ -0,0 +1,233 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ActivityNotFoundException;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.v4.content.FileProvider;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows the {@link Metrics} of the last hour, day and week and exports them as CSV.  Also lists
+ * dead-lettered camera uploads, which can be retried from the menu.
+ */
+public final class DiagnosticsActivity extends AppCompatActivity {
+    private static final String TAG = "DiagnosticsActivity";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private TextView text;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        text = (TextView) findViewById(R.id.diagnostics_text);
+        new ReportTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.diagnostics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_reload:
+                new ReportTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                return true;
+
+            case R.id.action_export:
+                new ExportTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                return true;
+
+            case R.id.action_retry_uploads:
+                new RetryUploadsTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                return true;
+
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    private final class ReportTask extends AsyncTask<Void, Void, String> {
+        @Override
+        protected String doInBackground(Void... unused) {
+            long now = System.currentTimeMillis();
+            StringBuilder sb = new StringBuilder();
+            UploadQueue queue = UploadQueue.getInstance(DiagnosticsActivity.this);
+            long oldest = queue.oldestEnqueuedAt();
+            sb.append("Upload queue: ").append(queue.size()).append(" items");
+            if (oldest != 0) {
+                sb.append(", oldest ")
+                        .append(TimeUnit.MILLISECONDS.toMinutes(now - oldest))
+                        .append(" min");
+            }
+            sb.append('\n');
+            List<UploadQueue.DeadItem> dead = queue.deadItems();
+            if (!dead.isEmpty()) {
+                sb.append("Failed uploads: ").append(dead.size()).append('\n');
+                for (UploadQueue.DeadItem item : dead) {
+                    sb.append("  ").append(item.fileName).append(" after ")
+                            .append(item.attempts).append(" attempts: ")
+                            .append(item.lastError).append('\n');
+                }
+            }
+            appendPeriod(sb, "Last hour", Metrics.load(DiagnosticsActivity.this,
+                    now - TimeUnit.HOURS.toMillis(1)));
+            appendPeriod(sb, "Last day", Metrics.load(DiagnosticsActivity.this,
+                    now - TimeUnit.DAYS.toMillis(1)));
+            appendPeriod(sb, "Last week", Metrics.load(DiagnosticsActivity.this,
+                    now - TimeUnit.DAYS.toMillis(7)));
+            return sb.toString();
+        }
+
+        @Override
+        protected void onPostExecute(String report) {
+            text.setText(report);
+        }
+    }
+
+    private final class RetryUploadsTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        protected Void doInBackground(Void... unused) {
+            UploadQueue.getInstance(DiagnosticsActivity.this).retryDead();
+            UploadJobs.schedule(getApplicationContext());
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void unused) {
+            new ReportTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    /** Windows are hourly, so each period also includes the start of its oldest hour. */
+    private static void appendPeriod(StringBuilder sb, String title,
+            Map<String, Metrics.Series> metrics) {
+        sb.append('\n').append(title).append('\n');
+        for (Map.Entry<String, Integer> entry : Metrics.SERIES.entrySet()) {
+            Metrics.Series series = metrics.get(entry.getKey());
+            if (series == null || series.count == 0) {
+                continue;
+            }
+            sb.append("  ").append(entry.getKey()).append(": ");
+            switch (entry.getValue()) {
+                case Metrics.TIMER:
+                    sb.append(series.count).append(" requests, mean ")
+                            .append(series.sum / series.count).append(" ms");
+                    appendQuantiles(sb, series, " ms");
+                    if (series.bytes > 0 && series.sum > 0) {
+                        // per request, not aggregate across concurrent requests
+                        sb.append(", ").append(series.bytes * 1000 / 1024 / series.sum)
+                                .append(" KB/s");
+                    }
+                    break;
+                case Metrics.COUNTER:
+                    sb.append(series.count);
+                    break;
+                case Metrics.RATIO:
+                    sb.append(100 * series.sum / series.count).append("% hits of ")
+                            .append(series.count);
+                    break;
+                case Metrics.GAUGE:
+                    sb.append(series.count).append(" samples, mean ")
+                            .append(series.sum / series.count);
+                    appendQuantiles(sb, series, "");
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown kind: " + entry.getValue());
+            }
+            sb.append('\n');
+        }
+    }
+
+    private static void appendQuantiles(StringBuilder sb, Metrics.Series series, String unit) {
+        for (double q : QUANTILES) {
+            long bound = series.quantile(q);
+            sb.append(", p").append((int) (q * 100)).append(' ');
+            if (bound == Long.MAX_VALUE) {
+                sb.append(">= ").append(1L << (Metrics.NUM_BUCKETS - 2));
+            } else {
+                sb.append("< ").append(bound);
+            }
+            sb.append(unit);
+        }
+    }
+
+    private final class ExportTask extends AsyncTask<Void, Void, File> {
+        @Override
+        protected File doInBackground(Void... unused) {
+            File directory = new File(getCacheDir(), "exports");
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.e(TAG, "Could not create directory: " + directory);
+                return null;
+            }
+            File file = new File(directory, "yass-metrics-" + new SimpleDateFormat(
+                    "yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".csv");
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+                Metrics.export(DiagnosticsActivity.this, writer);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Could not export metrics: " + ioe.getMessage());
+                file.delete();
+                return null;
+            }
+            return file;
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            if (file == null) {
+                Toast.makeText(DiagnosticsActivity.this, "Could not export metrics",
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+            Uri uri = FileProvider.getUriForFile(DiagnosticsActivity.this, "org.gaul.yass",
+                    file);
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("text/csv");
+            intent.putExtra(Intent.EXTRA_STREAM, uri);
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            try {
+                startActivity(Intent.createChooser(intent, getString(R.string.menu_export)));
+            } catch (ActivityNotFoundException anfe) {
+                Toast.makeText(DiagnosticsActivity.this, "Exported to " + file,
+                        Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+}
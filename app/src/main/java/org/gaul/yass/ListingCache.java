@@ -0,0 +1,254 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Persistent cache of delimited listings keyed by (endpoint, bucket, prefix).  Callers display
+ * the cached entries immediately and revalidate by listing again; the validator, a digest of the
+ * key, ETag, size and LastModified of every entry, tells whether anything changed.  The total
+ * size of cached listings is bounded by evicting the least recently used prefixes.
+ */
+final class ListingCache {
+    private static final String TAG = "ListingCache";
+    private static final long MAX_BYTES = 4 * 1024 * 1024;
+
+    private final SQLiteOpenHelper helper;
+
+    ListingCache(SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    static final class Entry {
+        final List<BlobEntry> entries;
+        final String validator;
+
+        Entry(List<BlobEntry> entries, String validator) {
+            this.entries = entries;
+            this.validator = validator;
+        }
+    }
+
+    /** Digest of a listing, used to detect changes on revalidation. */
+    static final class Validator {
+        private final MessageDigest digest;
+
+        Validator() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new RuntimeException(nsae);
+            }
+        }
+
+        void add(S3ObjectSummary summary) {
+            update(summary.getKey());
+            update(summary.getETag());
+            update(String.valueOf(summary.getSize()));
+            Date lastModified = summary.getLastModified();
+            update(lastModified == null ? null : String.valueOf(lastModified.getTime()));
+        }
+
+        void add(String commonPrefix) {
+            update(commonPrefix);
+        }
+
+        private void update(String value) {
+            if (value != null) {
+                digest.update(value.getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+        }
+
+        String finish() {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Convert one page of a delimited listing into entries relative to prefix, sorted by name,
+     * and add them to validator.
+     */
+    static List<BlobEntry> toEntries(ObjectListing listing, String prefix, Validator validator) {
+        List<BlobEntry> entries = new ArrayList<>();
+        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+            String key = summary.getKey();
+            if (key.equals(prefix)) {
+                continue;
+            }
+            Date lastModified = summary.getLastModified();
+            entries.add(BlobEntry.object(key.substring(prefix.length()), summary.getSize(),
+                    lastModified == null ? 0 : lastModified.getTime()));
+            validator.add(summary);
+        }
+        for (String commonPrefix : listing.getCommonPrefixes()) {
+            entries.add(BlobEntry.folder(commonPrefix.substring(prefix.length())));
+            validator.add(commonPrefix);
+        }
+        // Keys and common prefixes are each returned in order; sorting a single page
+        // interleaves them cheaply.
+        Collections.sort(entries);
+        return entries;
+    }
+
+    Entry get(String endpoint, String bucket, String prefix) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        String[] projection = {"names", "validator"};
+        String selection = "endpoint = ? AND bucket = ? AND prefix = ?";
+        String[] selectionArgs = {Sql.nullToEmpty(endpoint), bucket, prefix};
+        byte[] names;
+        String validator;
+        Cursor cursor = db.query("listing_cache", projection, selection, selectionArgs,
+                null, null, null);
+        try {
+            boolean hit = cursor.moveToNext();
+            Metrics.lookup(Metrics.LISTING_CACHE, hit);
+            if (!hit) {
+                return null;
+            }
+            names = cursor.getBlob(cursor.getColumnIndexOrThrow("names"));
+            validator = cursor.getString(cursor.getColumnIndexOrThrow("validator"));
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("last_access", System.currentTimeMillis());
+        db.update("listing_cache", values, selection, selectionArgs);
+
+        try {
+            return new Entry(decode(names), validator);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Corrupt listing for prefix: " + prefix + " " + ioe.getMessage());
+            invalidate(endpoint, bucket, prefix);
+            return null;
+        }
+    }
+
+    void put(String endpoint, String bucket, String prefix, List<BlobEntry> entries,
+            String validator) {
+        byte[] encoded = encode(entries);
+        if (encoded.length > MAX_BYTES) {
+            return;
+        }
+        SQLiteDatabase db = helper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("endpoint", Sql.nullToEmpty(endpoint));
+        values.put("bucket", bucket);
+        values.put("prefix", prefix);
+        values.put("names", encoded);
+        values.put("validator", validator);
+        values.put("size", encoded.length);
+        values.put("last_access", System.currentTimeMillis());
+        db.beginTransaction();
+        try {
+            db.insertWithOnConflict("listing_cache", null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            evict(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    void invalidate(String endpoint, String bucket, String prefix) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.delete("listing_cache", "endpoint = ? AND bucket = ? AND prefix = ?",
+                new String[] {Sql.nullToEmpty(endpoint), bucket, prefix});
+    }
+
+    /** Remove least recently used listings until the cache fits in MAX_BYTES. */
+    private static void evict(SQLiteDatabase db) {
+        String[] projection = {"rowid", "size"};
+        Cursor cursor = db.query("listing_cache", projection, null, null, null, null,
+                "last_access DESC");
+        List<String> evicted = new ArrayList<>();
+        try {
+            long total = 0;
+            while (cursor.moveToNext()) {
+                total += cursor.getLong(1);
+                if (total > MAX_BYTES) {
+                    evicted.add(String.valueOf(cursor.getLong(0)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String rowid : evicted) {
+            db.delete("listing_cache", "rowid = ?", new String[] {rowid});
+        }
+    }
+
+    private static byte[] encode(List<BlobEntry> entries) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(entries.size());
+            for (BlobEntry entry : entries) {
+                dos.writeUTF(entry.name);
+                dos.writeBoolean(entry.folder);
+                if (!entry.folder) {
+                    dos.writeLong(entry.size);
+                    dos.writeLong(entry.lastModified);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+        return baos.toByteArray();
+    }
+
+    private static List<BlobEntry> decode(byte[] bytes) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int count = dis.readInt();
+            List<BlobEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                String name = dis.readUTF();
+                if (dis.readBoolean()) {
+                    entries.add(BlobEntry.folder(name));
+                } else {
+                    long size = dis.readLong();
+                    entries.add(BlobEntry.object(name, size, dis.readLong()));
+                }
+            }
+            return entries;
+        }
+    }
+}
@@ -15,6 +15,7 @@
 
 package org.gaul.yass;
 
+import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
@@ -24,56 +25,169 @@ import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.v4.content.FileProvider;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.view.ActionMode;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
-import android.view.View;
 import android.webkit.MimeTypeMap;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
+import android.widget.EditText;
 import android.widget.Toast;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.ClientConfiguration;
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3Object;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
 
 public final class MainActivity extends AppCompatActivity {
     private static final String TAG = "yass";
     private AmazonS3 client;
     private YassPreferences preferences;
-    private ListView mListView;
-    private final List<String> listItems = new ArrayList<String>();
-    private ArrayAdapter<String> adapter;
+    private RecyclerView mListView;
+    private BlobListAdapter adapter;
     private String prefix = "";
-    private ObjectListing listing;
+    private AsyncTask<?, ?, ?> listTask;
+    /** Query being shown instead of the listing of prefix, or null. */
+    private String searchText;
+    private SearchIndex searchIndex;
+    private ListingCache listingCache;
+    private OfflineManifest offlineManifest;
+    private OfflineSync offlineSync;
+    /** Offline prefix which is or encloses the listed prefix, or null. */
+    private String offlinePrefix;
+    private BlobCache blobCache;
+    private PartialDownloads partialDownloads;
+    private BlobDownloader downloader;
+    private Prefetcher prefetcher;
+    private ThumbnailLoader thumbnails;
+    private final Handler handler = new Handler();
+    private final Runnable prefetchVisible = new Runnable() {
+        @Override
+        public void run() {
+            LinearLayoutManager layout = (LinearLayoutManager) mListView.getLayoutManager();
+            int first = layout.findFirstVisibleItemPosition();
+            int last = layout.findLastVisibleItemPosition();
+            if (first == RecyclerView.NO_POSITION || adapter.getPrefix() == null) {
+                return;
+            }
+            List<BlobEntry> visible = new ArrayList<>();
+            for (int i = first; i <= last && i < adapter.getItemCount(); ++i) {
+                visible.add(adapter.getEntry(i));
+            }
+            prefetcher.prefetch(adapter.getPrefix(), visible);
+        }
+    };
+    private ActionMode actionMode;
+    private final ActionMode.Callback selectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            switch (item.getItemId()) {
+                case R.id.action_select_all:
+                    adapter.selectAll();
+                    mode.setTitle(adapter.getSelectedCount() + " selected");
+                    return true;
+                case R.id.action_download:
+                    startBulkTask(BulkTask.DOWNLOAD, null);
+                    return true;
+                case R.id.action_copy:
+                    promptDestination(BulkTask.COPY);
+                    return true;
+                case R.id.action_move:
+                    promptDestination(BulkTask.MOVE);
+                    return true;
+                case R.id.action_delete:
+                    confirmDelete();
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            actionMode = null;
+            adapter.clearSelection();
+        }
+    };
     private SharedPreferences.OnSharedPreferenceChangeListener listener =
             new SharedPreferences.OnSharedPreferenceChangeListener() {
                 public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    YassPreferences oldPreferences = MainActivity.this.preferences;
+                    AmazonS3 oldClient = MainActivity.this.client;
                     MainActivity.this.preferences = new YassPreferences(getApplicationContext());
                     MainActivity.this.client = getS3Client(MainActivity.this.preferences);
+                    if (key.equals("camera_upload") || key.equals("camera_upload_only_on_wifi")) {
+                        UploadJobs.schedule(getApplicationContext());
+                    }
+                    boolean sourceChanged = !MainActivity.this.preferences.profile.name.equals(
+                            oldPreferences.profile.name) ||
+                            !sameString(MainActivity.this.preferences.endpoint,
+                                    oldPreferences.endpoint) ||
+                            !MainActivity.this.preferences.bucketName.equals(
+                                    oldPreferences.bucketName);
+                    if (!MainActivity.this.preferences.profile.name.equals(
+                            oldPreferences.profile.name)) {
+                        // follow edits of the newly active profile
+                        Profile.preferences(getApplicationContext(), oldPreferences.profile.name)
+                                .unregisterOnSharedPreferenceChangeListener(this);
+                        Profile.preferences(getApplicationContext(),
+                                MainActivity.this.preferences.profile.name)
+                                .registerOnSharedPreferenceChangeListener(this);
+                    }
+                    if (oldPreferences.blobCacheSize !=
+                            MainActivity.this.preferences.blobCacheSize) {
+                        MainActivity.this.blobCache = new BlobCache(getCacheDir(),
+                                MainActivity.this.preferences.blobCacheSize);
+                    }
+                    if (oldPreferences.blobCacheSize !=
+                            MainActivity.this.preferences.blobCacheSize ||
+                            oldClient != MainActivity.this.client || sourceChanged) {
+                        MainActivity.this.downloader = new BlobDownloader(
+                                MainActivity.this.client,
+                                MainActivity.this.preferences.endpoint,
+                                MainActivity.this.blobCache,
+                                MainActivity.this.partialDownloads);
+                    }
+                    // the bucket may have changed even if the client did not
+                    MainActivity.this.prefetcher.shutdown();
+                    MainActivity.this.prefetcher = newPrefetcher();
+                    MainActivity.this.thumbnails.setSource(MainActivity.this.client,
+                            MainActivity.this.preferences.endpoint,
+                            MainActivity.this.preferences.bucketName);
+                    if (sourceChanged) {
+                        // the cached listing of the new bucket shows at once
+                        MainActivity.this.prefix = "";
+                        listBlobs("");
+                    }
+                }
+
+                private boolean sameString(String a, String b) {
+                    return a == null ? b == null : a.equals(b);
                 }
             };
 
@@ -88,31 +202,256 @@ public final class MainActivity extends AppCompatActivity {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
         prefs.registerOnSharedPreferenceChangeListener(listener);
         preferences = new YassPreferences(getApplicationContext());
+        Profile.preferences(getApplicationContext(), preferences.profile.name)
+                .registerOnSharedPreferenceChangeListener(listener);
         // TODO: if prefs not set, show settings
 
         client = getS3Client(preferences);
+        YassDbHelper dbHelper = YassDbHelper.getInstance(this);
+        listingCache = new ListingCache(dbHelper);
+        offlineManifest = OfflineManifest.getInstance(this);
+        offlineSync = OfflineSync.getInstance(this);
+        searchIndex = new SearchIndex(dbHelper);
+        partialDownloads = new PartialDownloads(dbHelper);
+        blobCache = new BlobCache(getCacheDir(), preferences.blobCacheSize);
+        downloader = new BlobDownloader(client, preferences.endpoint, blobCache,
+                partialDownloads);
+        prefetcher = newPrefetcher();
+        thumbnails = new ThumbnailLoader(this, client, preferences.endpoint,
+                preferences.bucketName,
+                getResources().getDimensionPixelSize(R.dimen.thumbnail_size));
 
-        this.mListView = (ListView) findViewById(R.id.blob_list_view);
-        this.adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, listItems);
-        mListView.setAdapter(adapter);
-        mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        this.mListView = (RecyclerView) findViewById(R.id.blob_list_view);
+        this.adapter = new BlobListAdapter(this, new BlobListAdapter.OnEntryClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long arg3) {
-                String path = prefix + listItems.get(position);
-                if (listing.getCommonPrefixes().contains(path)) {
+            public void onEntryClick(BlobEntry entry) {
+                if (actionMode != null) {
+                    toggleSelection(entry);
+                    return;
+                }
+                // rows may still belong to the previous prefix while a new listing loads
+                String path = adapter.getPrefix() + entry.name;
+                if (entry.folder) {
                     MainActivity.this.prefix = path;
-                    new BlobListTask().execute(path);
+                    listBlobs(path);
                 } else {
                     new SelectBlobTask().execute(path);
                 }
             }
+
+            @Override
+            public void onEntryLongClick(BlobEntry entry) {
+                if (actionMode == null) {
+                    actionMode = startSupportActionMode(selectionCallback);
+                }
+                toggleSelection(entry);
+            }
+        }, thumbnails);
+        mListView.setLayoutManager(new LinearLayoutManager(this));
+        mListView.addItemDecoration(new DividerItemDecoration(this,
+                DividerItemDecoration.VERTICAL));
+        mListView.setHasFixedSize(true);
+        mListView.setAdapter(adapter);
+        mListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    schedulePrefetch();
+                } else {
+                    handler.removeCallbacks(prefetchVisible);
+                }
+            }
         });
-        // TODO: long press
-        new BlobListTask().execute("");
+        listBlobs("");
+
+        // drain uploads queued while the app was not running
+        UploadJobs.schedule(getApplicationContext());
+        OfflineSync.schedule(getApplicationContext());
+    }
+
+    @Override
+    protected void onStop() {
+        Metrics.flushInBackground(this);
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacks(prefetchVisible);
+        prefetcher.shutdown();
+        thumbnails.shutdown();
+        super.onDestroy();
+    }
+
+    private Prefetcher newPrefetcher() {
+        return new Prefetcher(this, preferences, client, listingCache, downloader);
+    }
+
+    /** Prefetch the visible rows once the user has been idle on them for a moment. */
+    private void schedulePrefetch() {
+        handler.removeCallbacks(prefetchVisible);
+        handler.postDelayed(prefetchVisible, Prefetcher.IDLE_DELAY_MILLIS);
+    }
+
+    private void listBlobs(String prefix) {
+        listBlobs(prefix, false);
+    }
+
+    private void toggleSelection(BlobEntry entry) {
+        adapter.toggleSelection(entry);
+        if (adapter.getSelectedCount() == 0) {
+            actionMode.finish();
+        } else {
+            actionMode.setTitle(adapter.getSelectedCount() + " selected");
+        }
+    }
+
+    /** Start operation on the selection, finishing the action mode. */
+    private void startBulkTask(int operation, String destinationPrefix) {
+        String sourcePrefix = adapter.getPrefix();
+        List<BlobEntry> selected = new ArrayList<>();
+        for (BlobEntry entry : adapter.getSelectedEntries()) {
+            String key = sourcePrefix + entry.name;
+            selected.add(entry.folder ? BlobEntry.folder(key) :
+                    BlobEntry.object(key, entry.size, entry.lastModified));
+        }
+        actionMode.finish();
+        new BulkTask(operation, selected, sourcePrefix, destinationPrefix)
+                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void confirmDelete() {
+        new AlertDialog.Builder(this)
+                .setMessage("Delete " + adapter.getSelectedCount() +
+                        " selected items and everything in selected folders?")
+                .setPositiveButton(R.string.menu_delete, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        startBulkTask(BulkTask.DELETE, null);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /** Ask for the prefix to copy or move the selection into, defaulting to the current one. */
+    private void promptDestination(final int operation) {
+        final EditText input = new EditText(this);
+        input.setSingleLine(true);
+        input.setText(adapter.getPrefix());
+        new AlertDialog.Builder(this)
+                .setTitle(operation == BulkTask.MOVE ? R.string.menu_move : R.string.menu_copy)
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String destination = input.getText().toString();
+                        if (!destination.isEmpty() && !destination.endsWith("/")) {
+                            destination += "/";
+                        }
+                        startBulkTask(operation, destination);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Start listing prefix, abandoning any listing still in progress.  Unless invalidate is set,
+     * the cached listing is shown first and revalidated in the background.
+     */
+    private void listBlobs(String prefix, boolean invalidate) {
+        if (listTask != null) {
+            listTask.cancel(false);
+        }
+        if (searchText != null) {
+            searchText = null;
+            setTitle(R.string.app_name);
+        }
+        handler.removeCallbacks(prefetchVisible);
+        if (!prefix.equals(adapter.getPrefix())) {
+            prefetcher.cancel();
+            if (actionMode != null) {
+                actionMode.finish();
+            }
+        }
+        // Run outside the serial executor so that downloads do not wait for long listings.
+        listTask = new BlobListTask(invalidate).executeOnExecutor(
+                AsyncTask.THREAD_POOL_EXECUTOR, prefix);
+    }
+
+    /** Show keys anywhere under the current prefix which match text. */
+    private void search(String text, boolean invalidate) {
+        SearchQuery query;
+        try {
+            query = SearchQuery.parse(text);
+        } catch (ParseException pe) {
+            Toast.makeText(this, pe.getMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
+        if (listTask != null) {
+            listTask.cancel(false);
+        }
+        handler.removeCallbacks(prefetchVisible);
+        if (actionMode != null) {
+            actionMode.finish();
+        }
+        searchText = text;
+        setTitle("Search: " + text);
+        listTask = new SearchTask(prefix, query, invalidate)
+                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void promptSearch() {
+        final EditText input = new EditText(this);
+        input.setSingleLine(true);
+        input.setHint("name *.jpg size>1M after:2017-01-01");
+        if (searchText != null) {
+            input.setText(searchText);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_search)
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String text = input.getText().toString().trim();
+                        if (!text.isEmpty()) {
+                            search(text, false);
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /** Switch the browser to another profile; settings changes take it from there. */
+    private void promptProfile() {
+        final List<String> names = Profile.names(this);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_profile)
+                .setSingleChoiceItems(names.toArray(new String[names.size()]),
+                        names.indexOf(preferences.profile.name),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                PreferenceManager.getDefaultSharedPreferences(
+                                        getApplicationContext()).edit()
+                                        .putString(Profile.ACTIVE_KEY, names.get(which))
+                                        .apply();
+                                dialog.dismiss();
+                            }
+                        })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
     }
 
     @Override
     public void onBackPressed() {
+        if (searchText != null) {
+            listBlobs(prefix);
+            return;
+        }
         if (prefix.equals("")) {
             super.onBackPressed();
         }
@@ -120,7 +459,7 @@ public final class MainActivity extends AppCompatActivity {
         int index = prefix.lastIndexOf('/', prefix.length() - 2);
         prefix = prefix.substring(0, index + 1);
         Log.i(TAG, "Changing prefix to: " + prefix);
-        new BlobListTask().execute(prefix);
+        listBlobs(prefix);
     }
 
     @Override
@@ -128,7 +467,32 @@ public final class MainActivity extends AppCompatActivity {
         switch (item.getItemId()) {
             case R.id.action_reload:
                 Log.i(TAG, "reload");
-                new BlobListTask().execute(this.prefix);
+                if (searchText != null) {
+                    search(searchText, true);
+                } else if (offlinePrefix != null) {
+                    // offline listings come from the manifest, which a sync refreshes
+                    offlineSync.sync(newRelistListener());
+                } else {
+                    listBlobs(this.prefix, true);
+                }
+                return true;
+
+            case R.id.action_offline:
+                boolean offline = !item.isChecked();
+                offlineSync.setOffline(preferences.endpoint, preferences.bucketName, prefix,
+                        offline, newRelistListener());
+                if (offline) {
+                    Toast.makeText(this, "Downloading for offline use", Toast.LENGTH_SHORT)
+                            .show();
+                }
+                return true;
+
+            case R.id.action_search:
+                promptSearch();
+                return true;
+
+            case R.id.action_profile:
+                promptProfile();
                 return true;
 
             case R.id.action_settings:
@@ -137,6 +501,10 @@ public final class MainActivity extends AppCompatActivity {
                 startActivity(myIntent);
                 return true;
 
+            case R.id.action_diagnostics:
+                startActivity(new Intent(MainActivity.this, DiagnosticsActivity.class));
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
 
@@ -150,51 +518,390 @@ public final class MainActivity extends AppCompatActivity {
         return true;
     }
 
-    private class BlobListTask extends AsyncTask<String, Void, Collection<String>> {
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        MenuItem offline = menu.findItem(R.id.action_offline);
+        offline.setChecked(offlinePrefix != null);
+        // folders inside an offline folder follow it
+        offline.setEnabled(searchText == null &&
+                (offlinePrefix == null || offlinePrefix.equals(prefix)));
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    /** Relist the current prefix once the offline copies changed. */
+    private OfflineSync.Listener newRelistListener() {
+        return new OfflineSync.Listener() {
+            @Override
+            public void onSynced(final boolean success) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        if (!success) {
+                            Toast.makeText(MainActivity.this, "Could not sync offline folders",
+                                    Toast.LENGTH_LONG).show();
+                        }
+                        if (searchText == null) {
+                            listBlobs(prefix);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /** One page of a listing, relative to the listed prefix and sorted by name. */
+    private static final class ListingPage {
+        final String prefix;
+        final List<BlobEntry> entries;
+        /** Whether this page replaces the displayed items instead of adding to them. */
+        final boolean replace;
+
+        ListingPage(String prefix, List<BlobEntry> entries, boolean replace) {
+            this.prefix = prefix;
+            this.entries = entries;
+            this.replace = replace;
+        }
+    }
+
+    /**
+     * Lists a prefix page by page, following the listing marker until the listing is no longer
+     * truncated.  Each page is merged into the displayed items as it arrives so that the first
+     * rows render without waiting for the rest of a large prefix.  When the prefix is cached, the
+     * cached listing is shown instead and only replaced if the fresh listing differs.  Explicit
+     * reloads likewise keep the displayed rows until the whole listing has arrived so that the
+     * adapter diff only rebinds rows which changed.
+     */
+    private class BlobListTask extends AsyncTask<String, ListingPage, Boolean> {
+        private final boolean invalidate;
+        private final String endpoint = preferences.endpoint;
+        private final String bucketName = preferences.bucketName;
+
+        BlobListTask(boolean invalidate) {
+            this.invalidate = invalidate;
+        }
+
+        /** Offline prefix covering the listed prefix, or null. */
+        private String offlinePrefix;
+
         @Override
-        public Collection<String> doInBackground(String... path) {
-            List<String> listItems = new ArrayList<>();
-            String prefix = path[0];
+        public Boolean doInBackground(String... path) {
+            final String prefix = path[0];
+
+            offlinePrefix = offlineManifest.coveringPrefix(endpoint, bucketName, prefix);
+            // until a sync of the offline prefix completes its manifest lacks objects
+            if (offlinePrefix != null &&
+                    offlineManifest.isSynced(endpoint, bucketName, offlinePrefix)) {
+                Log.d(TAG, "offline listing for prefix: " + prefix);
+                publishProgress(new ListingPage(prefix,
+                        offlineManifest.list(endpoint, bucketName, prefix), true));
+                return true;
+            }
+
+            ListingCache.Entry cached = null;
+            if (invalidate) {
+                listingCache.invalidate(endpoint, bucketName, prefix);
+            } else {
+                cached = listingCache.get(endpoint, bucketName, prefix);
+            }
+            if (cached != null) {
+                Log.d(TAG, "cached listing for prefix: " + prefix);
+                publishProgress(new ListingPage(prefix, cached.entries, true));
+            }
+
+            final ListingCache.Validator validator = new ListingCache.Validator();
+            final List<BlobEntry> allEntries = new ArrayList<>();
+            // show pages as they arrive unless cached rows are already showing
+            final boolean incremental = cached == null && !invalidate;
             try {
-                MainActivity.this.listing = client.listObjects(new ListObjectsRequest()
-                        .withBucketName(preferences.bucketName)
-                        .withDelimiter("/")
-                        .withPrefix(prefix));
+                boolean complete = ObjectLister.list(client, bucketName, prefix, true, 0,
+                        Metrics.LIST_STATS, new ObjectLister.PageHandler() {
+                            private boolean firstPage = true;
+
+                            @Override
+                            public boolean onPage(ObjectListing page) {
+                                List<BlobEntry> entries = ListingCache.toEntries(page, prefix,
+                                        validator);
+                                BlobEntry.mergeSorted(allEntries, entries);
+                                if (incremental) {
+                                    publishProgress(new ListingPage(prefix, entries,
+                                            firstPage));
+                                }
+                                firstPage = false;
+                                return !isCancelled();
+                            }
+                        });
+                if (!complete) {
+                    return true;
+                }
             } catch (AmazonClientException ace) {
                 Log.e(TAG, "Error listing with prefix: " + prefix + " " + ace.getMessage());
-                return null;
+                return false;
             }
-            for (S3ObjectSummary summary : MainActivity.this.listing.getObjectSummaries()) {
-                String key = summary.getKey();
-                Log.d(TAG, "listing key: " + key);
-                if (key.equals(prefix)) {
-                    continue;
-                }
-                listItems.add(key.substring(prefix.length()));
+
+            String digest = validator.finish();
+            if (invalidate) {
+                publishProgress(new ListingPage(prefix, allEntries, true));
+            } else if (cached != null && !cached.validator.equals(digest)) {
+                Log.d(TAG, "cached listing changed for prefix: " + prefix);
+                publishProgress(new ListingPage(prefix, allEntries, true));
             }
-            for (String commonPrefix : MainActivity.this.listing.getCommonPrefixes()) {
-                Log.d(TAG, "listing common prefix: " + commonPrefix);
-                listItems.add(commonPrefix.substring(prefix.length()));
+            listingCache.put(endpoint, bucketName, prefix, allEntries, digest);
+            return true;
+        }
+
+        @Override
+        protected void onProgressUpdate(ListingPage... pages) {
+            if (!isCancelled()) {
+                showPages(pages);
             }
-            Collections.sort(listItems);
-            return listItems;
         }
 
         @Override
-        protected void onPostExecute(Collection<String> listItems) {
-            if (listItems == null) {
+        protected void onPostExecute(Boolean success) {
+            MainActivity.this.offlinePrefix = offlinePrefix;
+            invalidateOptionsMenu();
+            if (!success) {
                 Toast.makeText(MainActivity.this, "Could not list keys", Toast.LENGTH_LONG).show();
                 return;
             }
-            MainActivity.this.listItems.clear();
-            MainActivity.this.listItems.addAll(listItems);
-            adapter.notifyDataSetChanged();
+            if (offlinePrefix == null) {
+                schedulePrefetch();
+            }
+        }
+    }
+
+    private void showPages(ListingPage... pages) {
+        for (ListingPage page : pages) {
+            if (page.replace) {
+                adapter.setEntries(page.prefix, page.entries);
+            } else {
+                adapter.addEntries(page.entries);
+            }
+        }
+    }
+
+    /**
+     * Searches prefix recursively.  Results come from {@link SearchIndex} when it recently
+     * crawled prefix; otherwise a non-delimited listing streams every key beneath prefix into
+     * the index while each page is filtered and shown as it arrives.
+     */
+    private class SearchTask extends AsyncTask<Void, ListingPage, Boolean> {
+        private final String prefix;
+        private final SearchQuery query;
+        private final boolean invalidate;
+        private final String endpoint = preferences.endpoint;
+        private final String bucketName = preferences.bucketName;
+
+        SearchTask(String prefix, SearchQuery query, boolean invalidate) {
+            this.prefix = prefix;
+            this.query = query;
+            this.invalidate = invalidate;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            if (!invalidate && searchIndex.isFresh(endpoint, bucketName, prefix)) {
+                Log.d(TAG, "searching index for prefix: " + prefix);
+                publishProgress(new ListingPage(prefix,
+                        searchIndex.search(endpoint, bucketName, prefix, query), true));
+                return true;
+            }
+
+            searchIndex.beginCrawl(endpoint, bucketName, prefix);
+            try {
+                boolean complete = ObjectLister.list(client, bucketName, prefix, false, 0,
+                        Metrics.LIST_STATS, new ObjectLister.PageHandler() {
+                            private boolean firstPage = true;
+
+                            @Override
+                            public boolean onPage(ObjectListing page) {
+                                List<BlobEntry> objects = ObjectLister.objects(page);
+                                List<BlobEntry> matches = new ArrayList<>();
+                                for (BlobEntry object : objects) {
+                                    if (!SearchIndex.isResult(prefix, object.name)) {
+                                        continue;
+                                    }
+                                    String name = object.name.substring(prefix.length());
+                                    if (query.matches(name, object.size,
+                                            object.lastModified)) {
+                                        matches.add(BlobEntry.object(name, object.size,
+                                                object.lastModified));
+                                    }
+                                }
+                                searchIndex.add(endpoint, bucketName, objects);
+                                publishProgress(new ListingPage(prefix, matches, firstPage));
+                                firstPage = false;
+                                return !isCancelled();
+                            }
+                        });
+                if (!complete) {
+                    return true;
+                }
+            } catch (AmazonClientException ace) {
+                Log.e(TAG, "Error searching prefix: " + prefix + " " + ace.getMessage());
+                return false;
+            }
+            searchIndex.finishCrawl(endpoint, bucketName, prefix);
+            return true;
+        }
+
+        @Override
+        protected void onProgressUpdate(ListingPage... pages) {
+            if (!isCancelled()) {
+                showPages(pages);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            if (!success) {
+                Toast.makeText(MainActivity.this, "Could not search keys",
+                        Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /**
+     * Runs a {@link BulkOperations} operation on the selection behind a cancellable progress
+     * dialog.  Selected folders are first expanded to all keys beneath them.
+     */
+    private class BulkTask extends AsyncTask<Void, Long, BulkOperations.Result> {
+        static final int DOWNLOAD = 0;
+        static final int DELETE = 1;
+        static final int COPY = 2;
+        static final int MOVE = 3;
+
+        private final int operation;
+        private final List<BlobEntry> selected;
+        private final String sourcePrefix;
+        private final String destinationPrefix;
+        private final BulkOperations operations = new BulkOperations(client,
+                preferences.bucketName, downloader, ObjectTransform.passphrase(preferences));
+        private final File downloadDirectory = new File(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
+                preferences.bucketName);
+        private final String message;
+        private ProgressDialog dialog;
+
+        BulkTask(int operation, List<BlobEntry> selected, String sourcePrefix,
+                String destinationPrefix) {
+            this.operation = operation;
+            this.selected = selected;
+            this.sourcePrefix = sourcePrefix;
+            this.destinationPrefix = destinationPrefix;
+            this.message = operation == DOWNLOAD ? "Downloading..." :
+                    operation == DELETE ? "Deleting..." : "Copying...";
+        }
+
+        @Override
+        protected void onPreExecute() {
+            dialog = new ProgressDialog(MainActivity.this);
+            dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            dialog.setIndeterminate(true);
+            dialog.setProgressNumberFormat(null);
+            dialog.setMax(100);
+            dialog.setMessage(message);
+            dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    cancel(false);
+                }
+            });
+            dialog.show();
+        }
+
+        @Override
+        protected BulkOperations.Result doInBackground(Void... params) {
+            BulkOperations.Listener listener = new BulkOperations.Listener() {
+                @Override
+                public void onProgress(long done, long total) {
+                    publishProgress(done, total);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return BulkTask.this.isCancelled();
+                }
+            };
+            try {
+                List<BlobEntry> objects = operations.expand(selected, listener);
+                if (objects == null) {
+                    return null;
+                }
+                switch (operation) {
+                    case DOWNLOAD:
+                        return operations.download(objects, sourcePrefix, downloadDirectory,
+                                listener);
+                    case DELETE:
+                        return operations.delete(objects, listener);
+                    case COPY:
+                    case MOVE:
+                        return operations.copy(objects, sourcePrefix, destinationPrefix,
+                                operation == MOVE, listener);
+                    default:
+                        throw new AssertionError(operation);
+                }
+            } catch (AmazonClientException ace) {
+                Log.e(TAG, "Error expanding selection: " + ace.getMessage());
+                return null;
+            } catch (IOException ioe) {
+                Log.e(TAG, "Error in bulk operation: " + ioe.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... progress) {
+            long done = progress[0];
+            long total = progress[1];
+            if (total == 0) {
+                // still expanding folders
+                dialog.setMessage("Listing " + done + " keys...");
+                return;
+            }
+            if (dialog.isIndeterminate()) {
+                dialog.setIndeterminate(false);
+                dialog.setMessage(message);
+            }
+            dialog.setProgress((int) (100 * done / total));
+        }
+
+        @Override
+        protected void onPostExecute(BulkOperations.Result result) {
+            dialog.dismiss();
+            if (result == null) {
+                Toast.makeText(MainActivity.this, "Could not complete operation",
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+            String message = result.succeeded.get() + " succeeded";
+            if (result.failed.get() > 0) {
+                message += ", " + result.failed.get() + " failed";
+            }
+            if (operation == DOWNLOAD) {
+                message += " in " + downloadDirectory;
+            } else {
+                listBlobs(MainActivity.this.prefix, true);
+            }
+            Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+        }
+
+        @Override
+        protected void onCancelled() {
+            dialog.dismiss();
+            if (operation != DOWNLOAD) {
+                listBlobs(MainActivity.this.prefix, true);
+            }
         }
     }
 
     private class SelectBlobTask extends AsyncTask<String, Integer, File> {
         private ProgressDialog dialog;
-        private S3Object object;
+        private String key;
+        private ObjectMetadata metadata;
 
         @Override
         protected void onPreExecute() {
@@ -215,51 +922,76 @@ public final class MainActivity extends AppCompatActivity {
         @Override
         public File doInBackground(String... path) {
             String key = path[0];
-            Log.d(TAG, "downloading: " + key);
+            this.key = key;
+
+            OfflineManifest.Entry offline = offlineSync.get(preferences.endpoint,
+                    preferences.bucketName, key);
+            if (offline != null) {
+                Log.d(TAG, "offline copy: " + key);
+                return decode(offlineSync.file(preferences.endpoint, preferences.bucketName,
+                        key), offline.transformed);
+            }
 
-            S3Object object;
             try {
-                object = client.getObject(preferences.bucketName, path[0]);
+                metadata = client.getObjectMetadata(preferences.bucketName, key);
             } catch (AmazonClientException ace) {
-                Log.e(TAG, "Error getting blob: " + key + " " + ace.getMessage());
+                Log.e(TAG, "Error getting blob metadata: " + key + " " + ace.getMessage());
                 return null;
             }
-            long contentLength = object.getObjectMetadata().getContentLength();
+            long contentLength = metadata.getContentLength();
+            String id = BlobCache.id(preferences.endpoint, preferences.bucketName, key,
+                    metadata);
+            File file = blobCache.get(id, contentLength);
+            if (file != null) {
+                Log.d(TAG, "cache hit: " + key);
+                return decode(file, ObjectTransform.isTransformed(metadata));
+            }
+
+            Log.d(TAG, "downloading: " + key);
             dialog.setMax((int) contentLength);
-            File file;
             try {
-                String eTag = object.getObjectMetadata().getETag();
-                if (eTag == null) {
-                    // Some object stores do not return a sensible ETag, e.g., S3Proxy with
-                    // filesystem backend.
-                    eTag = UUID.randomUUID().toString();
-                }
-                file = File.createTempFile(eTag, null, MainActivity.this.getCacheDir());
-                byte[] buffer = new byte[4096];
-                try (InputStream is = object.getObjectContent();
-                     OutputStream os = new FileOutputStream(file)) {
-                    long progress = 0;
-                    while (true) {
-                        int count = is.read(buffer);
-                        if (count == -1) {
-                            break;
-                        }
-                        os.write(buffer, 0, count);
-                        progress += count;
-                        publishProgress((int) progress);
-                        if (isCancelled()) {
-                            Log.i(TAG, "Cancelling: " + key);
-                            return null;
-                        }
-                    }
+                file = downloader.download(preferences.bucketName, key, metadata,
+                        new BlobDownloader.Listener() {
+                            @Override
+                            public void onProgress(long bytesTransferred) {
+                                publishProgress((int) bytesTransferred);
+                            }
+
+                            @Override
+                            public boolean isCancelled() {
+                                return SelectBlobTask.this.isCancelled();
+                            }
+                        });
+                if (file == null) {
+                    Log.i(TAG, "Cancelling: " + key);
+                    return null;
                 }
+            } catch (AmazonClientException ace) {
+                Log.e(TAG, "Error getting blob: " + key + " " + ace.getMessage());
+                return null;
             } catch (IOException ioe) {
                 Log.e(TAG, "Error downloading blob: " + key + " " + ioe.getMessage());
                 return null;
             }
 
-            this.object = object;
-            return file;
+            return decode(file, ObjectTransform.isTransformed(metadata));
+        }
+
+        /**
+         * Plaintext of file, which is client-side encoded if transformed, or null if it cannot be
+         * decoded.
+         */
+        private File decode(File file, boolean transformed) {
+            if (!transformed) {
+                return file;
+            }
+            try {
+                return ObjectTransform.decode(blobCache, file,
+                        ObjectTransform.passphrase(preferences));
+            } catch (IOException ioe) {
+                Log.e(TAG, "Error decoding blob: " + key + " " + ioe.getMessage());
+                return null;
+            }
         }
 
         @Override
@@ -280,13 +1012,14 @@ public final class MainActivity extends AppCompatActivity {
             }
 
             Uri uri = FileProvider.getUriForFile(MainActivity.this, "org.gaul.yass", file);
-            String mime = object.getObjectMetadata().getContentType();
+            // offline copies are opened without fetching metadata
+            String mime = metadata == null ? null : metadata.getContentType();
 
             if (mime == null || mime.equals("binary/octet-stream")) {
-                int index = object.getKey().lastIndexOf('.');
+                int index = key.lastIndexOf('.');
                 if (index != -1) {
                     mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
-                            object.getKey().substring(index + 1));
+                            key.substring(index + 1));
                     Log.d(TAG, "guessed mime type: " + mime);
                 }
             }
@@ -300,7 +1033,7 @@ public final class MainActivity extends AppCompatActivity {
                 startActivity(intent);
             } catch (ActivityNotFoundException anfe) {
                 // TODO: convert to text/plain?
-                Log.e(TAG, "No intent for " + object.getKey() + " with mime " + mime + " " + anfe);
+                Log.e(TAG, "No intent for " + key + " with mime " + mime + " " + anfe);
                 Toast.makeText(MainActivity.this, "No registered intent", Toast.LENGTH_LONG).show();
                 return;
             }
@@ -316,32 +1049,102 @@ public final class MainActivity extends AppCompatActivity {
     }
 
     static final class YassPreferences {
+        /** Active profile, whose settings the fields below repeat. */
+        final Profile profile;
         final String accessKey;
         final String secretKey;
         final String bucketName;
         final String endpoint;
         final boolean cameraUpload;
         final boolean cameraUploadOnlyOnWifi;
+        /** Profile camera uploads go to. */
+        final String uploadProfile;
+        /** Profile camera uploads are also copied to, or null. */
+        final String backupProfile;
+        final long blobCacheSize;
+        final int uploadConcurrency;
+        final int uploadConcurrencyMetered;
+        final long uploadRateUnmetered;
+        final long uploadRateMetered;
+        final long meteredMonthlyBudget;
+        final boolean chargingOnlyLargeVideos;
+        final long largeVideoSize;
+        final boolean uploadCompress;
+        final String encryptionPassphrase;
+        final int maxConnections;
+        final int socketTimeout;
+        final int connectionTimeout;
+        final int maxErrorRetry;
+        final boolean keepAlive;
 
         YassPreferences(Context context) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            // TODO: should default values be null?
-            this.accessKey = prefs.getString("access_key", "access_key");
-            this.secretKey = prefs.getString("secret_key", "secret_key");
-            this.bucketName = prefs.getString("bucket_name", "bucket_name");
-            this.endpoint = prefs.getString("endpoint", null);
+            this.profile = Profile.active(context);
+            this.accessKey = profile.accessKey;
+            this.secretKey = profile.secretKey;
+            this.bucketName = profile.bucketName;
+            this.endpoint = profile.endpoint;
             this.cameraUpload = prefs.getBoolean("camera_upload", false);
             this.cameraUploadOnlyOnWifi = prefs.getBoolean("camera_upload_only_on_wifi", false);
+            this.uploadProfile = prefs.getString(Profile.UPLOAD_KEY, profile.name);
+            String backup = prefs.getString(Profile.BACKUP_KEY, "");
+            this.backupProfile = backup.isEmpty() || backup.equals(uploadProfile) ? null :
+                    backup;
+            this.blobCacheSize = parseLong(prefs.getString("blob_cache_size", null), 100) *
+                    1024 * 1024;
+            this.uploadConcurrency = (int) Math.max(1,
+                    parseLong(prefs.getString("upload_concurrency", null), 2));
+            this.uploadConcurrencyMetered = (int) Math.max(1,
+                    parseLong(prefs.getString("upload_concurrency_metered", null), 1));
+            // rates are in KB/s and budgets in MB, 0 meaning unlimited
+            this.uploadRateUnmetered = Math.max(0,
+                    parseLong(prefs.getString("upload_rate_unmetered", null), 0)) * 1024;
+            this.uploadRateMetered = Math.max(0,
+                    parseLong(prefs.getString("upload_rate_metered", null), 0)) * 1024;
+            this.meteredMonthlyBudget = Math.max(0,
+                    parseLong(prefs.getString("metered_monthly_budget", null), 0)) *
+                    1024 * 1024;
+            this.chargingOnlyLargeVideos = prefs.getBoolean("charging_only_large_videos", false);
+            this.largeVideoSize = parseLong(prefs.getString("large_video_size", null), 100) *
+                    1024 * 1024;
+            this.uploadCompress = prefs.getBoolean("upload_compress", false);
+            String passphrase = prefs.getString("encryption_passphrase", "");
+            this.encryptionPassphrase = passphrase.isEmpty() ? null : passphrase;
+            this.maxConnections = (int) Math.max(1,
+                    parseLong(prefs.getString("max_connections", null), 10));
+            this.socketTimeout = (int) parseLong(prefs.getString("socket_timeout", null), 50) *
+                    1000;
+            this.connectionTimeout = (int) parseLong(
+                    prefs.getString("connection_timeout", null), 15) * 1000;
+            this.maxErrorRetry = (int) Math.max(0,
+                    parseLong(prefs.getString("max_error_retry", null), 3));
+            this.keepAlive = prefs.getBoolean("keep_alive", true);
+        }
+
+        /** Profiles each camera upload goes to, primary first. */
+        List<String> uploadTargets() {
+            List<String> targets = new ArrayList<>();
+            targets.add(uploadProfile);
+            if (backupProfile != null) {
+                targets.add(backupProfile);
+            }
+            return targets;
         }
-    }
 
-    static AmazonS3Client getS3Client(YassPreferences preferences) {
-        BasicAWSCredentials awsCreds = new BasicAWSCredentials(preferences.accessKey,
-                preferences.secretKey);
-        AmazonS3Client client = new AmazonS3Client(awsCreds, new ClientConfiguration());
-        if (preferences.endpoint != null && !preferences.endpoint.isEmpty()) {
-            client.setEndpoint(preferences.endpoint);
+        private static long parseLong(String value, long defaultValue) {
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.w(TAG, "Invalid number: " + value);
+                return defaultValue;
+            }
         }
-        return client;
+    }
+
+    static AmazonS3 getS3Client(YassPreferences preferences) {
+        return S3ClientProvider.getClient(preferences, preferences.profile);
     }
 }
@@ -0,0 +1,76 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/** Bytes uploaded over metered networks per calendar month, for the metered data budget. */
+final class MeteredUsage {
+    private static MeteredUsage instance;
+
+    private final SQLiteOpenHelper helper;
+
+    private MeteredUsage(SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    static synchronized MeteredUsage getInstance(Context context) {
+        if (instance == null) {
+            instance = new MeteredUsage(YassDbHelper.getInstance(context));
+        }
+        return instance;
+    }
+
+    long thisMonth() {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        SQLiteStatement statement = db.compileStatement(
+                "SELECT COALESCE(SUM(bytes), 0) FROM metered_usage WHERE month = ?");
+        try {
+            statement.bindString(1, month());
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    synchronized void add(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT OR IGNORE INTO metered_usage (month, bytes) VALUES (?, 0)",
+                    new Object[] {month()});
+            db.execSQL("UPDATE metered_usage SET bytes = bytes + ? WHERE month = ?",
+                    new Object[] {bytes, month()});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String month() {
+        return new SimpleDateFormat("yyyy-MM", Locale.US).format(new Date());
+    }
+}
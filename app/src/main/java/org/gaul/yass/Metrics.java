@@ -0,0 +1,330 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performance counters for tuning concurrency and cache sizes.  Samples accumulate in memory,
+ * which is cheap enough for the UI thread, and {@link #flush} merges them into hourly windows in
+ * the metrics table, which keeps a week of history.  Each series counts its samples and keeps
+ * their sum and a histogram with power-of-two buckets; transfers also sum their bytes.
+ */
+final class Metrics {
+    private static final String TAG = "Metrics";
+
+    // kinds of series, which decide how the diagnostics screen presents them
+    /** Latencies in milliseconds. */
+    static final int TIMER = 0;
+    static final int COUNTER = 1;
+    /** Cache lookups; the sum counts hits. */
+    static final int RATIO = 2;
+    /** Sampled values such as queue depth. */
+    static final int GAUGE = 3;
+
+    static final String LIST = "list";
+    static final String GET = "get";
+    static final String PUT = "put";
+    /** Time until the response headers of a GET arrive. */
+    static final String FIRST_BYTE = "first_byte";
+    /** Requests the SDK retried after a retryable error. */
+    static final String RETRY = "retry";
+    /** Failed camera upload attempts, including those retried later. */
+    static final String UPLOAD_FAILURE = "upload_failure";
+    /** Camera uploads given up after permanent errors or too many attempts. */
+    static final String DEAD_LETTER = "dead_letter";
+    /** Times the endpoint's circuit breaker opened. */
+    static final String CIRCUIT_OPEN = "circuit_open";
+    static final String LISTING_CACHE = "listing_cache";
+    static final String BLOB_CACHE = "blob_cache";
+    static final String THUMBNAIL_MEMORY_CACHE = "thumbnail_memory_cache";
+    static final String THUMBNAIL_DISK_CACHE = "thumbnail_disk_cache";
+    static final String QUEUE_DEPTH = "queue_depth";
+    /** Seconds the oldest queued camera upload has waited. */
+    static final String QUEUE_AGE = "queue_age";
+
+    /** Every series in presentation order with its kind. */
+    static final Map<String, Integer> SERIES = new LinkedHashMap<>();
+
+    static {
+        SERIES.put(LIST, TIMER);
+        SERIES.put(GET, TIMER);
+        SERIES.put(FIRST_BYTE, TIMER);
+        SERIES.put(PUT, TIMER);
+        SERIES.put(RETRY, COUNTER);
+        SERIES.put(UPLOAD_FAILURE, COUNTER);
+        SERIES.put(DEAD_LETTER, COUNTER);
+        SERIES.put(CIRCUIT_OPEN, COUNTER);
+        SERIES.put(LISTING_CACHE, RATIO);
+        SERIES.put(BLOB_CACHE, RATIO);
+        SERIES.put(THUMBNAIL_MEMORY_CACHE, RATIO);
+        SERIES.put(THUMBNAIL_DISK_CACHE, RATIO);
+        SERIES.put(QUEUE_DEPTH, GAUGE);
+        SERIES.put(QUEUE_AGE, GAUGE);
+    }
+
+    static final long WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    /** Bucket i holds values in [2^(i-1), 2^i); the last bucket is unbounded. */
+    static final int NUM_BUCKETS = 24;
+
+    /** Samples not yet flushed by window start and series name. */
+    private static Map<Long, Map<String, Series>> pending = new HashMap<>();
+
+    private Metrics() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    static final class Series {
+        long count;
+        long sum;
+        long bytes;
+        final long[] buckets = new long[NUM_BUCKETS];
+
+        void add(long value, long bytes) {
+            ++count;
+            sum += value;
+            this.bytes += bytes;
+            ++buckets[bucket(value)];
+        }
+
+        void merge(Series other) {
+            count += other.count;
+            sum += other.sum;
+            bytes += other.bytes;
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                buckets[i] += other.buckets[i];
+            }
+        }
+
+        /**
+         * Upper bound of the bucket holding quantile q of the samples, or Long.MAX_VALUE if it
+         * falls into the unbounded bucket.
+         */
+        long quantile(double q) {
+            long target = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS - 1; ++i) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private static int bucket(long value) {
+            if (value <= 0) {
+                return 0;
+            }
+            return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        private String encodeBuckets() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(buckets[i]);
+            }
+            return sb.toString();
+        }
+
+        private static Series decode(Cursor cursor) {
+            Series series = new Series();
+            series.count = cursor.getLong(cursor.getColumnIndexOrThrow("count"));
+            series.sum = cursor.getLong(cursor.getColumnIndexOrThrow("sum"));
+            series.bytes = cursor.getLong(cursor.getColumnIndexOrThrow("bytes"));
+            String[] buckets = cursor.getString(cursor.getColumnIndexOrThrow("buckets"))
+                    .split(",");
+            for (int i = 0; i < Math.min(NUM_BUCKETS, buckets.length); ++i) {
+                series.buckets[i] = Long.parseLong(buckets[i]);
+            }
+            return series;
+        }
+    }
+
+    /** Records the latency of the LIST requests sent by {@link ObjectLister}. */
+    static final ObjectLister.Stats LIST_STATS = new ObjectLister.Stats() {
+        @Override
+        public void onList(long startNanos) {
+            time(LIST, startNanos);
+        }
+    };
+
+    /** Record the milliseconds elapsed since startNanos, from System.nanoTime. */
+    static void time(String name, long startNanos) {
+        record(name, elapsedMillis(startNanos), 0);
+    }
+
+    /** Record the duration of a transfer of bytes which began at startNanos. */
+    static void transfer(String name, long startNanos, long bytes) {
+        record(name, elapsedMillis(startNanos), bytes);
+    }
+
+    static void count(String name) {
+        record(name, 1, 0);
+    }
+
+    static void lookup(String name, boolean hit) {
+        record(name, hit ? 1 : 0, 0);
+    }
+
+    static void sample(String name, long value) {
+        record(name, value, 0);
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static synchronized void record(String name, long value, long bytes) {
+        long window = System.currentTimeMillis() / WINDOW_MILLIS * WINDOW_MILLIS;
+        Map<String, Series> series = pending.get(window);
+        if (series == null) {
+            series = new HashMap<>();
+            pending.put(window, series);
+        }
+        Series s = series.get(name);
+        if (s == null) {
+            s = new Series();
+            series.put(name, s);
+        }
+        s.add(value, bytes);
+    }
+
+    private static synchronized Map<Long, Map<String, Series>> takePending() {
+        Map<Long, Map<String, Series>> result = pending;
+        pending = new HashMap<>();
+        return result;
+    }
+
+    /** Merge pending samples into their windows and drop windows past retention. */
+    static void flush(Context context) {
+        Map<Long, Map<String, Series>> samples = takePending();
+        SQLiteDatabase db = YassDbHelper.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<Long, Map<String, Series>> window : samples.entrySet()) {
+                for (Map.Entry<String, Series> entry : window.getValue().entrySet()) {
+                    Series series = entry.getValue();
+                    String[] selectionArgs = {String.valueOf(window.getKey()), entry.getKey()};
+                    Cursor cursor = db.query("metrics", null, "window_start = ? AND name = ?",
+                            selectionArgs, null, null, null);
+                    try {
+                        if (cursor.moveToNext()) {
+                            series.merge(Series.decode(cursor));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    ContentValues values = new ContentValues();
+                    values.put("window_start", window.getKey());
+                    values.put("name", entry.getKey());
+                    values.put("count", series.count);
+                    values.put("sum", series.sum);
+                    values.put("bytes", series.bytes);
+                    values.put("buckets", series.encodeBuckets());
+                    db.insertWithOnConflict("metrics", null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                }
+            }
+            db.delete("metrics", "window_start < ?", new String[] {
+                    String.valueOf(System.currentTimeMillis() - RETENTION_MILLIS)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Flush without blocking the calling thread. */
+    static void flushInBackground(Context context) {
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush(appContext);
+                } catch (RuntimeException re) {
+                    Log.e(TAG, "Could not flush metrics: " + re.getMessage());
+                }
+            }
+        });
+    }
+
+    /** Flush and return every series summed over the windows which end after sinceMillis. */
+    static Map<String, Series> load(Context context, long sinceMillis) {
+        flush(context);
+        Map<String, Series> result = new HashMap<>();
+        SQLiteDatabase db = YassDbHelper.getInstance(context).getReadableDatabase();
+        Cursor cursor = db.query("metrics", null, "window_start > ?",
+                new String[] {String.valueOf(sinceMillis - WINDOW_MILLIS)}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(cursor.getColumnIndexOrThrow("name"));
+                Series series = result.get(name);
+                if (series == null) {
+                    series = new Series();
+                    result.put(name, series);
+                }
+                series.merge(Series.decode(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Flush and write every retained window as CSV, one row per window and series.  Bucket
+     * columns are named by their exclusive upper bound.
+     */
+    static void export(Context context, Writer writer) throws IOException {
+        flush(context);
+        writer.write("window_start,name,count,sum,bytes");
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            writer.write(i < NUM_BUCKETS - 1 ? ",lt_" + (1L << i) : ",inf");
+        }
+        writer.write('\n');
+        SQLiteDatabase db = YassDbHelper.getInstance(context).getReadableDatabase();
+        Cursor cursor = db.query("metrics", null, null, null, null, null,
+                "window_start ASC, name ASC");
+        try {
+            while (cursor.moveToNext()) {
+                Series series = Series.decode(cursor);
+                writer.write(cursor.getLong(cursor.getColumnIndexOrThrow("window_start")) +
+                        "," + cursor.getString(cursor.getColumnIndexOrThrow("name")) +
+                        "," + series.count + "," + series.sum + "," + series.bytes + "," +
+                        series.encodeBuckets() + "\n");
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
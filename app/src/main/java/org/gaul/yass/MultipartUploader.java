@@ -0,0 +1,295 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads large camera files with multipart upload.  The upload id and the ETag of every
+ * completed part are persisted with the camera_uploads row so that an interrupted upload resumes
+ * with the missing parts instead of starting over.  Several parts upload concurrently, each
+ * reading its own region of the file.
+ */
+final class MultipartUploader {
+    private static final String TAG = "MultipartUploader";
+    static final long MULTIPART_THRESHOLD = 16 * 1024 * 1024;
+    private static final long MIN_PART_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+    static final int CONCURRENCY = 3;
+
+    private final AmazonS3 client;
+    private final ContentResolver resolver;
+    private final SQLiteOpenHelper helper;
+    private final int concurrency;
+    private final TokenBucket bucket;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param concurrency parts to upload at once, at most {@link #CONCURRENCY}
+     * @param bucket limits the rate of all part uploads
+     */
+    MultipartUploader(AmazonS3 client, ContentResolver resolver, SQLiteOpenHelper helper,
+            int concurrency, TokenBucket bucket) {
+        this.client = client;
+        this.resolver = resolver;
+        this.helper = helper;
+        this.concurrency = Math.max(1, Math.min(CONCURRENCY, concurrency));
+        this.bucket = bucket;
+        this.executor = new ThreadPoolExecutor(this.concurrency, this.concurrency, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Part size which keeps the number of parts within the S3 limit, rounded to a megabyte. */
+    static long partSize(long fileSize) {
+        long partSize = Math.max(MIN_PART_SIZE, (fileSize + MAX_PARTS - 1) / MAX_PARTS);
+        long megabyte = 1024 * 1024;
+        return (partSize + megabyte - 1) / megabyte * megabyte;
+    }
+
+    /**
+     * Upload uri to key, resuming the persisted upload for serial if there is one.  Each part is
+     * hashed while it is sent and checked against its ETag, and the object's ETag is checked
+     * against the MD5 of the part MD5s.
+     *
+     * @param metadata content type and user metadata of a new upload
+     * @return ETag of the completed object
+     */
+    String upload(final long serial, final String bucketName, final String key, final Uri uri,
+            final long fileSize, ObjectMetadata metadata) throws IOException {
+        final long partSize = partSize(fileSize);
+        final int numParts = (int) ((fileSize + partSize - 1) / partSize);
+
+        String uploadId = null;
+        final Map<Integer, String> parts = new TreeMap<>();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        Cursor cursor = db.query("camera_uploads", new String[] {"upload_id", "upload_size"},
+                "serial = ?", new String[] {String.valueOf(serial)}, null, null, null);
+        try {
+            if (cursor.moveToNext() && !cursor.isNull(0)) {
+                if (cursor.getLong(1) == fileSize) {
+                    uploadId = cursor.getString(0);
+                } else {
+                    Log.i(TAG, "File changed since upload started: " + key);
+                    abortQuietly(bucketName, key, cursor.getString(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (uploadId != null) {
+            cursor = db.query("camera_upload_parts", new String[] {"part_number", "e_tag"},
+                    "serial = ?", new String[] {String.valueOf(serial)}, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    parts.put(cursor.getInt(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (!uploadExists(bucketName, key, uploadId)) {
+                Log.i(TAG, "Upload no longer exists, restarting: " + key);
+                uploadId = null;
+                parts.clear();
+            } else {
+                Log.i(TAG, "Resuming upload of " + key + " with " + parts.size() + " of " +
+                        numParts + " parts");
+            }
+        }
+        if (uploadId == null) {
+            clearParts(serial);
+            uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(
+                    bucketName, key, metadata)).getUploadId();
+            ContentValues values = new ContentValues();
+            values.put("upload_id", uploadId);
+            values.put("upload_size", fileSize);
+            db.update("camera_uploads", values, "serial = ?",
+                    new String[] {String.valueOf(serial)});
+        }
+
+        final String finalUploadId = uploadId;
+        boolean complete = Workers.run(executor, Math.min(concurrency, numParts - parts.size()),
+                numParts, new Workers.Task() {
+                    @Override
+                    public boolean run(int index) throws IOException {
+                        int partNumber = index + 1;
+                        synchronized (parts) {
+                            if (parts.containsKey(partNumber)) {
+                                return true;
+                            }
+                        }
+                        String eTag = uploadPart(bucketName, key, finalUploadId, uri, fileSize,
+                                partSize, partNumber, numParts);
+                        synchronized (parts) {
+                            parts.put(partNumber, eTag);
+                        }
+                        savePart(serial, partNumber, eTag);
+                        return true;
+                    }
+                });
+        if (!complete) {
+            throw new InterruptedIOException("Interrupted uploading " + key);
+        }
+
+        List<PartETag> partETags = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : parts.entrySet()) {
+            partETags.add(new PartETag(entry.getKey(), entry.getValue()));
+        }
+        String eTag = client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                bucketName, key, uploadId, partETags)).getETag();
+        clearParts(serial);
+        String expected = expectedETag(parts);
+        if (expected != null && eTag != null && eTag.contains("-") &&
+                !UploadIndex.eTagMatches(eTag, expected)) {
+            throw new IOException("Checksum mismatch for " + key + ": expected " + expected +
+                    " actual " + eTag);
+        }
+        return eTag;
+    }
+
+    /**
+     * Abort any persisted upload for serial, e.g., because the bytes to upload were regenerated
+     * and no longer match the parts already sent.
+     */
+    void discard(long serial, String bucketName, String key) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        Cursor cursor = db.query("camera_uploads", new String[] {"upload_id"},
+                "serial = ?", new String[] {String.valueOf(serial)}, null, null, null);
+        try {
+            if (!cursor.moveToNext() || cursor.isNull(0)) {
+                return;
+            }
+            abortQuietly(bucketName, key, cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+        ContentValues values = new ContentValues();
+        values.putNull("upload_id");
+        values.putNull("upload_size");
+        db.update("camera_uploads", values, "serial = ?", new String[] {String.valueOf(serial)});
+        clearParts(serial);
+    }
+
+    /** MD5 of the part MD5s and part count, or null if the store returns opaque ETags. */
+    private static String expectedETag(Map<Integer, String> parts) {
+        MessageDigest digest = HashingInputStream.newMd5();
+        for (String partETag : parts.values()) {
+            if (!UploadIndex.isMd5ETag(partETag)) {
+                return null;
+            }
+            digest.update(UploadIndex.fromHex(partETag.replace("\"", "")));
+        }
+        return UploadIndex.multipartETag(digest.digest(), parts.size());
+    }
+
+    private String uploadPart(String bucketName, String key, String uploadId, Uri uri,
+            long fileSize, long partSize, int partNumber, int numParts) throws IOException {
+        long offset = (partNumber - 1) * partSize;
+        long size = Math.min(partSize, fileSize - offset);
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            throw new FileNotFoundException("Could not open: " + uri);
+        }
+        try (FileInputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+            is.getChannel().position(offset);
+            HashingInputStream his = new HashingInputStream(new ThrottledInputStream(is, bucket));
+            long start = System.nanoTime();
+            UploadPartResult result = client.uploadPart(new UploadPartRequest()
+                    .withBucketName(bucketName)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withPartSize(size)
+                    .withInputStream(his)
+                    .withLastPart(partNumber == numParts));
+            Metrics.transfer(Metrics.PUT, start, size);
+            Log.d(TAG, "Uploaded part " + partNumber + " of " + numParts + ": " + key);
+            String eTag = result.getPartETag().getETag();
+            String md5 = UploadIndex.toHex(his.md5());
+            if (UploadIndex.isMd5ETag(eTag) && !UploadIndex.eTagMatches(eTag, md5)) {
+                throw new IOException("Checksum mismatch for part " + partNumber + " of " + key +
+                        ": expected " + md5 + " actual " + eTag);
+            }
+            return eTag;
+        }
+    }
+
+    private boolean uploadExists(String bucketName, String key, String uploadId) {
+        try {
+            client.listParts(new ListPartsRequest(bucketName, key, uploadId));
+            return true;
+        } catch (AmazonServiceException ase) {
+            if (ase.getStatusCode() == 404) {
+                return false;
+            }
+            throw ase;
+        }
+    }
+
+    private void abortQuietly(String bucketName, String key, String uploadId) {
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key,
+                    uploadId));
+        } catch (AmazonServiceException ase) {
+            Log.w(TAG, "Could not abort upload: " + key + " " + ase.getMessage());
+        }
+    }
+
+    private void savePart(long serial, int partNumber, String eTag) {
+        ContentValues values = new ContentValues();
+        values.put("serial", serial);
+        values.put("part_number", partNumber);
+        values.put("e_tag", eTag);
+        helper.getWritableDatabase().insertWithOnConflict("camera_upload_parts", null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private void clearParts(long serial) {
+        helper.getWritableDatabase().delete("camera_upload_parts", "serial = ?",
+                new String[] {String.valueOf(serial)});
+    }
+}
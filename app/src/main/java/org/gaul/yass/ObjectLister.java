@@ -0,0 +1,105 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Pages through the listing of a prefix.  Browsing, searching, prefetching, bulk operations
+ * and offline sync all list through here; it uses no Android APIs, reporting request latencies
+ * through {@link Stats} instead of {@link Metrics}, so listing can be exercised on a plain JVM
+ * against any S3 endpoint.
+ */
+final class ObjectLister {
+    private ObjectLister() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /** Receives the latency of each LIST request. */
+    interface Stats {
+        /** @param startNanos System.nanoTime when the request was sent */
+        void onList(long startNanos);
+    }
+
+    /** Stats which discard latencies, e.g., for benchmarks. */
+    static final Stats NO_STATS = new Stats() {
+        @Override
+        public void onList(long startNanos) {
+        }
+    };
+
+    interface PageHandler {
+        /** @return false to stop listing, e.g., when cancelled */
+        boolean onPage(ObjectListing page);
+    }
+
+    /**
+     * Pass each page of the listing of prefix to handler.
+     *
+     * @param delimited whether to list one level with "/" as delimiter instead of every key
+     * @param maxPages number of pages after which to stop, or 0 for no limit
+     * @return true if the whole listing was handled, false if it was stopped early
+     */
+    static boolean list(AmazonS3 client, String bucketName, String prefix, boolean delimited,
+            int maxPages, Stats stats, PageHandler handler) {
+        ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(bucketName)
+                .withPrefix(prefix);
+        if (delimited) {
+            request = request.withDelimiter("/");
+        }
+        long start = System.nanoTime();
+        ObjectListing listing = client.listObjects(request);
+        stats.onList(start);
+        for (int page = 1; ; ++page) {
+            if (!handler.onPage(listing)) {
+                return false;
+            }
+            if (!listing.isTruncated()) {
+                return true;
+            }
+            if (page == maxPages) {
+                return false;
+            }
+            start = System.nanoTime();
+            listing = client.listNextBatchOfObjects(listing);
+            stats.onList(start);
+        }
+    }
+
+    /** Objects of a page named by their full key. */
+    static List<BlobEntry> objects(ObjectListing page) {
+        List<BlobEntry> objects = new ArrayList<>();
+        for (S3ObjectSummary summary : page.getObjectSummaries()) {
+            objects.add(BlobEntry.object(summary.getKey(), summary.getSize(),
+                    lastModified(summary)));
+        }
+        return objects;
+    }
+
+    /** Last modification time in milliseconds, or 0 if the server did not send it. */
+    static long lastModified(S3ObjectSummary summary) {
+        Date date = summary.getLastModified();
+        return date == null ? 0 : date.getTime();
+    }
+}
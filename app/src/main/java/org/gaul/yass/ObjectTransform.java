@@ -0,0 +1,187 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Applies {@link ChunkedFormat} to uploads and reverses it for downloads.  Transformed objects
+ * carry their format, plaintext length and plaintext MD5 in user metadata so that duplicate
+ * detection still compares contents.  Encoded uploads are spooled to a local file first since
+ * neither their length nor their ETag is known until the whole input has been read.
+ */
+final class ObjectTransform {
+    static final String FORMAT_METADATA = "yass-format";
+    static final String LENGTH_METADATA = "yass-length";
+    static final String MD5_METADATA = "yass-md5";
+    private static final String FORMAT = "chunked-1";
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private ObjectTransform() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /** Passphrase from preferences or null to leave uploads unencrypted. */
+    static char[] passphrase(MainActivity.YassPreferences preferences) {
+        return preferences.encryptionPassphrase == null ? null :
+                preferences.encryptionPassphrase.toCharArray();
+    }
+
+    /** Whether uploads of contentType are encoded at all. */
+    static boolean shouldTransform(boolean compress, char[] passphrase, String contentType) {
+        return passphrase != null || (compress && shouldCompress(contentType));
+    }
+
+    /** Text-like types which deflate well; images and videos are already compressed. */
+    static boolean shouldCompress(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.US);
+        int semicolon = type.indexOf(';');
+        if (semicolon != -1) {
+            type = type.substring(0, semicolon).trim();
+        }
+        return type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json") ||
+                type.equals("application/json") || type.equals("application/xml") ||
+                type.equals("application/javascript") || type.equals("application/csv");
+    }
+
+    static boolean isTransformed(ObjectMetadata metadata) {
+        return FORMAT.equals(metadata.getUserMetaDataOf(FORMAT_METADATA));
+    }
+
+    /** Plaintext length of a transformed object, or -1 if unknown. */
+    static long plainLength(ObjectMetadata metadata) {
+        String value = metadata.getUserMetaDataOf(LENGTH_METADATA);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /** Hex MD5 of the plaintext of a transformed object, or null if unknown. */
+    static String plainMd5(ObjectMetadata metadata) {
+        return metadata.getUserMetaDataOf(MD5_METADATA);
+    }
+
+    static void setMetadata(ObjectMetadata metadata, long plainLength, String plainMd5) {
+        metadata.addUserMetadata(FORMAT_METADATA, FORMAT);
+        metadata.addUserMetadata(LENGTH_METADATA, String.valueOf(plainLength));
+        metadata.addUserMetadata(MD5_METADATA, plainMd5);
+    }
+
+    /**
+     * Encode in to spool, which only appears once complete so that callers can reuse it for a
+     * resumed multipart upload.
+     */
+    static void spool(InputStream in, File spool, boolean compress, char[] passphrase)
+            throws IOException {
+        File directory = spool.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory);
+        }
+        File partial = new File(directory, spool.getName() + PARTIAL_SUFFIX);
+        try {
+            ChunkedFormat.encode(in, partial, compress, passphrase);
+        } catch (IOException ioe) {
+            partial.delete();
+            throw ioe;
+        }
+        if (!partial.renameTo(spool)) {
+            partial.delete();
+            throw new IOException("Could not rename " + partial + " to " + spool);
+        }
+    }
+
+    /**
+     * Whether spool, left by an earlier attempt, was encoded with these settings.  Spool names do
+     * not depend on the passphrase, so opening the first chunk checks that it still decrypts.
+     */
+    static boolean canReuse(File spool, boolean compress, char[] passphrase) {
+        try (FileInputStream is = new FileInputStream(spool)) {
+            ChunkedFormat.Reader reader = new ChunkedFormat.Reader(is.getChannel(), passphrase);
+            if (reader.isCompressed() != compress ||
+                    reader.isEncrypted() != (passphrase != null)) {
+                return false;
+            }
+            reader.readChunk(0);
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /** Delete spooled files; callers ensure no upload still needs them. */
+    static void clearSpool(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Return the plaintext of an encoded file, which is decoded into cache once and reused
+     * afterwards.  Callers tell encoded objects by their metadata, see {@link #isTransformed},
+     * since a plain object may start with any bytes.
+     *
+     * @throws IOException if file is corrupt or passphrase is missing or wrong
+     */
+    static File decode(BlobCache cache, File file, char[] passphrase) throws IOException {
+        try (FileInputStream is = new FileInputStream(file)) {
+            ChunkedFormat.Reader reader = new ChunkedFormat.Reader(is.getChannel(), passphrase);
+            String id = BlobCache.digest("decoded", UploadIndex.toHex(reader.fileId()));
+            File decoded = cache.get(id, reader.plainLength());
+            if (decoded != null) {
+                return decoded;
+            }
+            File partial = cache.partialFile(id);
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(partial),
+                    TransferEngine.SMALL_BUFFER_SIZE)) {
+                reader.decodeTo(os);
+            } catch (IOException ioe) {
+                partial.delete();
+                throw ioe;
+            }
+            return cache.commit(partial, id);
+        }
+    }
+
+    /** Write the plaintext of an encoded file to target. */
+    static void decodeTo(File file, File target, char[] passphrase) throws IOException {
+        try (FileInputStream is = new FileInputStream(file);
+             OutputStream os = new BufferedOutputStream(new FileOutputStream(target),
+                     TransferEngine.SMALL_BUFFER_SIZE)) {
+            new ChunkedFormat.Reader(is.getChannel(), passphrase).decodeTo(os);
+        }
+    }
+}
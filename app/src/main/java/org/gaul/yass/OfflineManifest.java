@@ -0,0 +1,271 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prefixes marked available offline and the objects stored locally for them.  offline_prefixes
+ * never holds a prefix nested in another one.  An offline_objects row is only written once its
+ * file is complete, so every row names a readable file.
+ */
+final class OfflineManifest {
+    private static OfflineManifest instance;
+
+    private final SQLiteOpenHelper helper;
+
+    private OfflineManifest(SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    static synchronized OfflineManifest getInstance(Context context) {
+        if (instance == null) {
+            instance = new OfflineManifest(YassDbHelper.getInstance(context));
+        }
+        return instance;
+    }
+
+    /** Local copy of an object as of the last sync. */
+    static final class Entry {
+        final String key;
+        final String eTag;
+        final long size;
+        final long lastModified;
+        /** Whether the object is stored encoded, see {@link ObjectTransform#isTransformed}. */
+        final boolean transformed;
+
+        Entry(String key, String eTag, long size, long lastModified, boolean transformed) {
+            this.key = key;
+            this.eTag = eTag;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.transformed = transformed;
+        }
+    }
+
+    List<String> prefixes(String endpoint, String bucket) {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        Cursor cursor = db.query("offline_prefixes", new String[] {"prefix"},
+                "endpoint = ? AND bucket = ?", new String[] {Sql.nullToEmpty(endpoint), bucket},
+                null, null, "prefix");
+        List<String> prefixes = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                prefixes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return prefixes;
+    }
+
+    /** The offline prefix which is or encloses prefix, or null if prefix is online only. */
+    String coveringPrefix(String endpoint, String bucket, String prefix) {
+        for (String offline : prefixes(endpoint, bucket)) {
+            if (prefix.startsWith(offline)) {
+                return offline;
+            }
+        }
+        return null;
+    }
+
+    /** Mark prefix offline, absorbing offline prefixes nested in it. */
+    void addPrefix(String endpoint, String bucket, String prefix) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String nested : prefixes(endpoint, bucket)) {
+                if (nested.startsWith(prefix)) {
+                    db.delete("offline_prefixes", "endpoint = ? AND bucket = ? AND prefix = ?",
+                            new String[] {Sql.nullToEmpty(endpoint), bucket, nested});
+                }
+            }
+            ContentValues values = new ContentValues();
+            values.put("endpoint", Sql.nullToEmpty(endpoint));
+            values.put("bucket", bucket);
+            values.put("prefix", prefix);
+            values.put("synced_at", 0);
+            db.insertWithOnConflict("offline_prefixes", null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Unmark prefix and forget its objects; the caller deletes their files. */
+    void removePrefix(String endpoint, String bucket, String prefix) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete("offline_prefixes", "endpoint = ? AND bucket = ? AND prefix = ?",
+                    new String[] {Sql.nullToEmpty(endpoint), bucket, prefix});
+            List<String> args = new ArrayList<>();
+            args.add(Sql.nullToEmpty(endpoint));
+            args.add(bucket);
+            db.delete("offline_objects", "endpoint = ? AND bucket = ?" + Sql.keyRange(prefix, args),
+                    args.toArray(new String[args.size()]));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Whether a sync of the offline prefix has completed, so that its objects are all local. */
+    boolean isSynced(String endpoint, String bucket, String prefix) {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        Cursor cursor = db.query("offline_prefixes", new String[] {"synced_at"},
+                "endpoint = ? AND bucket = ? AND prefix = ? AND synced_at > 0",
+                new String[] {Sql.nullToEmpty(endpoint), bucket, prefix}, null, null, null);
+        try {
+            return cursor.moveToNext();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    void setSynced(String endpoint, String bucket, String prefix) {
+        ContentValues values = new ContentValues();
+        values.put("synced_at", System.currentTimeMillis());
+        helper.getWritableDatabase().update("offline_prefixes", values,
+                "endpoint = ? AND bucket = ? AND prefix = ?",
+                new String[] {Sql.nullToEmpty(endpoint), bucket, prefix});
+    }
+
+    Entry get(String endpoint, String bucket, String key) {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        Cursor cursor = db.query("offline_objects",
+                new String[] {"object_key", "e_tag", "size", "last_modified", "transformed"},
+                "endpoint = ? AND bucket = ? AND object_key = ?",
+                new String[] {Sql.nullToEmpty(endpoint), bucket, key}, null, null, null);
+        try {
+            return cursor.moveToNext() ? toEntry(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Every local object under prefix by key. */
+    Map<String, Entry> entries(String endpoint, String bucket, String prefix) {
+        Map<String, Entry> entries = new HashMap<>();
+        Cursor cursor = query(endpoint, bucket, prefix);
+        try {
+            while (cursor.moveToNext()) {
+                Entry entry = toEntry(cursor);
+                entries.put(entry.key, entry);
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * The listing of prefix with "/" as delimiter, relative to prefix and sorted by name, as
+     * {@link ListingCache#toEntries} would build it from S3.
+     */
+    List<BlobEntry> list(String endpoint, String bucket, String prefix) {
+        List<BlobEntry> entries = new ArrayList<>();
+        String lastFolder = null;
+        Cursor cursor = query(endpoint, bucket, prefix);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0).substring(prefix.length());
+                if (name.isEmpty()) {
+                    continue;
+                }
+                int index = name.indexOf('/');
+                if (index == -1) {
+                    entries.add(BlobEntry.object(name, cursor.getLong(2), cursor.getLong(3)));
+                    continue;
+                }
+                // keys arrive sorted so all keys in a folder are adjacent
+                String folder = name.substring(0, index + 1);
+                if (!folder.equals(lastFolder)) {
+                    entries.add(BlobEntry.folder(folder));
+                    lastFolder = folder;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        // SQLite orders by UTF-8 bytes and BlobEntry by UTF-16 units; they differ only for
+        // supplementary characters, which this nearly sorted list fixes cheaply.
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /** Record the local copy of an object after its file is in place. */
+    void put(String endpoint, String bucket, Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put("endpoint", Sql.nullToEmpty(endpoint));
+        values.put("bucket", bucket);
+        values.put("object_key", entry.key);
+        values.put("e_tag", entry.eTag);
+        values.put("size", entry.size);
+        values.put("last_modified", entry.lastModified);
+        values.put("transformed", entry.transformed ? 1 : 0);
+        helper.getWritableDatabase().insertWithOnConflict("offline_objects", null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /** Forget objects removed from the bucket in one transaction. */
+    void remove(String endpoint, String bucket, List<String> keys) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement delete = db.compileStatement("DELETE FROM offline_objects" +
+                " WHERE endpoint = ? AND bucket = ? AND object_key = ?");
+        db.beginTransaction();
+        try {
+            for (String key : keys) {
+                delete.bindString(1, Sql.nullToEmpty(endpoint));
+                delete.bindString(2, bucket);
+                delete.bindString(3, key);
+                delete.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            delete.close();
+        }
+    }
+
+    private Cursor query(String endpoint, String bucket, String prefix) {
+        List<String> args = new ArrayList<>();
+        args.add(Sql.nullToEmpty(endpoint));
+        args.add(bucket);
+        String selection = "endpoint = ? AND bucket = ?" + Sql.keyRange(prefix, args);
+        return helper.getReadableDatabase().query("offline_objects",
+                new String[] {"object_key", "e_tag", "size", "last_modified", "transformed"},
+                selection,
+                args.toArray(new String[args.size()]), null, null, "object_key");
+    }
+
+    private static Entry toEntry(Cursor cursor) {
+        return new Entry(cursor.getString(0), cursor.getString(1), cursor.getLong(2),
+                cursor.getLong(3), cursor.getInt(4) != 0);
+    }
+}
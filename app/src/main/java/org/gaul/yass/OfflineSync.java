@@ -0,0 +1,405 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the objects under offline prefixes in local storage.  A sync lists each offline prefix
+ * recursively, diffs the listing against {@link OfflineManifest} by ETag and size, downloads
+ * new and changed objects with bounded concurrency and deletes local copies of removed objects.
+ * As in {@link UploadScheduler}, a request during a sync makes it run once more afterwards.
+ * Offline prefixes are added and removed on the sync thread so that this never races a sync.
+ */
+final class OfflineSync {
+    private static final String TAG = "OfflineSync";
+    static final int CONCURRENCY = 3;
+    private static final int JOB_ID = 4;
+    private static final long SYNC_INTERVAL_MILLIS = 6 * 60 * 60 * 1000;
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private static OfflineSync instance;
+
+    private final Context context;
+    private final File directory;
+    private final OfflineManifest manifest;
+    private final ThreadPoolExecutor dispatcher = new ThreadPoolExecutor(1, 1, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(CONCURRENCY, CONCURRENCY,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final List<Listener> listeners = new ArrayList<>();
+    private boolean syncing;
+    private boolean rescan;
+    /** Whether a sync was requested without a listener, which no job can stop. */
+    private boolean unowned;
+    private volatile boolean stopped;
+
+    /** Notified once a sync or a change of offline prefixes finishes. */
+    interface Listener {
+        /** @param success whether every offline prefix is up to date */
+        void onSynced(boolean success);
+    }
+
+    private OfflineSync(Context context) {
+        this.context = context.getApplicationContext();
+        // not the cache directory, which the system may clear when storage runs low
+        this.directory = new File(this.context.getFilesDir(), "offline");
+        this.manifest = OfflineManifest.getInstance(context);
+        dispatcher.allowCoreThreadTimeOut(true);
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized OfflineSync getInstance(Context context) {
+        if (instance == null) {
+            instance = new OfflineSync(context);
+        }
+        return instance;
+    }
+
+    /** Sync periodically while the network allows. */
+    static void schedule(Context context) {
+        if (!UploadJobs.isSupported()) {
+            getInstance(context).sync();
+            return;
+        }
+        scheduleJob(context);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo pending : scheduler.getAllPendingJobs()) {
+            if (pending.getId() == JOB_ID) {
+                // rescheduling would restart the period
+                return;
+            }
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, OfflineSyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPeriodic(SYNC_INTERVAL_MILLIS)
+                .setPersisted(true)
+                .build();
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule offline sync job");
+        }
+    }
+
+    /** The manifest entry of key if its local {@link #file} is available offline, or null. */
+    OfflineManifest.Entry get(String endpoint, String bucket, String key) {
+        OfflineManifest.Entry entry = manifest.get(endpoint, bucket, key);
+        if (entry == null) {
+            return null;
+        }
+        File file = file(endpoint, bucket, key);
+        // a sync may be replacing the file with a newer version
+        return file.isFile() && file.length() == entry.size ? entry : null;
+    }
+
+    /** Local copy of key, which may not exist yet. */
+    File file(String endpoint, String bucket, String key) {
+        return new File(directory, BlobCache.digest(endpoint == null ? "" : endpoint, bucket,
+                key));
+    }
+
+    /** Sync in the background; returns immediately. */
+    void sync() {
+        sync(null);
+    }
+
+    /** Sync in the background and notify listener when done. */
+    synchronized void sync(Listener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        } else {
+            unowned = true;
+        }
+        rescan = true;
+        stopped = false;
+        if (syncing) {
+            return;
+        }
+        syncing = true;
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                while (takeRescan(success)) {
+                    success = syncAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Withdraw the sync request of owner, which is not notified any more.  The sync stops only
+     * if no other listener or request without a listener still needs it; the next sync resumes
+     * with the objects still missing.
+     */
+    synchronized void stop(Listener owner) {
+        listeners.remove(owner);
+        if (listeners.isEmpty() && !unowned) {
+            stopped = true;
+        }
+    }
+
+    /** Mark or unmark prefix as available offline; marking it starts a sync. */
+    void setOffline(final String endpoint, final String bucket, final String prefix,
+            final boolean offline, final Listener listener) {
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (offline) {
+                    manifest.addPrefix(endpoint, bucket, prefix);
+                    sync(listener);
+                    return;
+                }
+                Map<String, OfflineManifest.Entry> entries =
+                        manifest.entries(endpoint, bucket, prefix);
+                manifest.removePrefix(endpoint, bucket, prefix);
+                for (String key : entries.keySet()) {
+                    file(endpoint, bucket, key).delete();
+                }
+                if (listener != null) {
+                    listener.onSynced(true);
+                }
+            }
+        });
+    }
+
+    private boolean takeRescan(boolean success) {
+        List<Listener> finished;
+        synchronized (this) {
+            if (rescan && !stopped) {
+                rescan = false;
+                return true;
+            }
+            syncing = false;
+            finished = new ArrayList<>(listeners);
+            listeners.clear();
+            unowned = false;
+        }
+        for (Listener listener : finished) {
+            listener.onSynced(success);
+        }
+        return false;
+    }
+
+    /** Sync the offline prefixes of every profile, not only the active one. */
+    private boolean syncAll() {
+        MainActivity.YassPreferences preferences = new MainActivity.YassPreferences(context);
+        // profiles may share an endpoint and bucket, which syncs once
+        Map<String, Profile> sources = new LinkedHashMap<>();
+        for (String name : Profile.names(context)) {
+            Profile profile = Profile.load(context, name);
+            if (profile != null && !manifest.prefixes(profile.endpoint,
+                    profile.bucketName).isEmpty()) {
+                sources.put(BlobCache.namespace(profile.endpoint, profile.bucketName), profile);
+            }
+        }
+        if (sources.isEmpty()) {
+            return true;
+        }
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        if (activeNetwork == null || !activeNetwork.isConnectedOrConnecting()) {
+            Log.d(TAG, "Skipping offline sync because network is disconnected");
+            return false;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create directory: " + directory);
+            return false;
+        }
+        boolean success = true;
+        try {
+            for (Profile profile : sources.values()) {
+                AmazonS3 client = S3ClientProvider.getClient(preferences, profile);
+                for (String prefix : manifest.prefixes(profile.endpoint, profile.bucketName)) {
+                    if (stopped) {
+                        return false;
+                    }
+                    try {
+                        success &= syncPrefix(client, profile.endpoint, profile.bucketName,
+                                prefix);
+                    } catch (AmazonClientException | IOException e) {
+                        Log.e(TAG, "Could not sync prefix: " + prefix + " " + e.getMessage());
+                        success = false;
+                    }
+                }
+            }
+            return success;
+        } finally {
+            Metrics.flush(context);
+        }
+    }
+
+    private boolean syncPrefix(final AmazonS3 client, final String endpoint,
+            final String bucket, String prefix) throws IOException {
+        final Map<String, OfflineManifest.Entry> local =
+                manifest.entries(endpoint, bucket, prefix);
+        final List<OfflineManifest.Entry> changed = new ArrayList<>();
+        boolean complete = ObjectLister.list(client, bucket, prefix, false, 0,
+                Metrics.LIST_STATS, new ObjectLister.PageHandler() {
+                    @Override
+                    public boolean onPage(ObjectListing page) {
+                        for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                            OfflineManifest.Entry remote = new OfflineManifest.Entry(
+                                    summary.getKey(), summary.getETag(), summary.getSize(),
+                                    ObjectLister.lastModified(summary), false);
+                            OfflineManifest.Entry existing = local.remove(remote.key);
+                            if (existing == null || existing.size != remote.size ||
+                                    !sameETag(existing.eTag, remote.eTag) ||
+                                    (!isFolderMarker(remote) &&
+                                            !file(endpoint, bucket, remote.key).isFile())) {
+                                changed.add(remote);
+                            }
+                        }
+                        return !stopped;
+                    }
+                });
+        if (!complete) {
+            return false;
+        }
+
+        // what remains was removed from the bucket
+        List<String> removed = new ArrayList<>(local.keySet());
+        manifest.remove(endpoint, bucket, removed);
+        for (String key : removed) {
+            file(endpoint, bucket, key).delete();
+        }
+        Log.d(TAG, "Syncing " + prefix + ": " + changed.size() + " changed, " +
+                removed.size() + " removed");
+
+        boolean success = Workers.run(workers, CONCURRENCY, changed.size(),
+                new Workers.Task() {
+                    @Override
+                    public boolean run(int index) throws IOException {
+                        return download(client, endpoint, bucket, changed.get(index));
+                    }
+                });
+        if (success) {
+            manifest.setSynced(endpoint, bucket, prefix);
+        }
+        return success;
+    }
+
+    /**
+     * Download entry into its local file and record it in the manifest.
+     *
+     * @return false if the sync was stopped
+     */
+    private boolean download(AmazonS3 client, String endpoint, String bucket,
+            OfflineManifest.Entry entry) throws IOException {
+        if (isFolderMarker(entry)) {
+            manifest.put(endpoint, bucket, entry);
+            return true;
+        }
+        GetObjectRequest request = new GetObjectRequest(bucket, entry.key);
+        if (entry.eTag != null) {
+            request.setMatchingETagConstraints(Collections.singletonList(entry.eTag));
+        }
+        long start = System.nanoTime();
+        S3Object object = client.getObject(request);
+        if (object == null) {
+            Log.d(TAG, "Object changed since listing, skipping until next sync: " + entry.key);
+            return true;
+        }
+        Metrics.time(Metrics.FIRST_BYTE, start);
+        File file = file(endpoint, bucket, entry.key);
+        File partial = new File(file.getPath() + PARTIAL_SUFFIX);
+        S3ObjectInputStream is = object.getObjectContent();
+        long position;
+        try (RandomAccessFile raf = new RandomAccessFile(partial, "rw")) {
+            raf.setLength(0);
+            position = TransferEngine.copy(is, raf.getChannel(), 0, entry.size,
+                    new TransferEngine.Callback() {
+                        @Override
+                        public void onWritten(long position, int count) {
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return stopped;
+                        }
+                    });
+            if (stopped) {
+                is.abort();
+                partial.delete();
+                return false;
+            }
+        } catch (IOException ioe) {
+            is.abort();
+            partial.delete();
+            throw ioe;
+        } finally {
+            is.close();
+        }
+        if (position != entry.size) {
+            partial.delete();
+            throw new IOException("Short download for " + entry.key + ": expected " +
+                    entry.size + " bytes, received " + position);
+        }
+        Metrics.transfer(Metrics.GET, start, entry.size);
+        // readers see either the old or the new file, never a partial one
+        if (!partial.renameTo(file)) {
+            partial.delete();
+            throw new IOException("Could not rename " + partial + " to " + file);
+        }
+        // listings do not tell whether an object is encoded but its GET does
+        manifest.put(endpoint, bucket, new OfflineManifest.Entry(entry.key, entry.eTag,
+                entry.size, entry.lastModified,
+                ObjectTransform.isTransformed(object.getObjectMetadata())));
+        return true;
+    }
+
+    private static boolean isFolderMarker(OfflineManifest.Entry entry) {
+        return entry.key.endsWith("/") && entry.size == 0;
+    }
+
+    private static boolean sameETag(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
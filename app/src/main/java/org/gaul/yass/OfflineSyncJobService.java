@@ -0,0 +1,62 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.util.Log;
+
+/** Runs the periodic offline sync while the system holds the job. */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public final class OfflineSyncJobService extends JobService {
+    private static final String TAG = "OfflineSyncJobService";
+
+    /** Listener of the running job, so that stopping it leaves syncs started by the user. */
+    private OfflineSync.Listener listener;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Log.d(TAG, "Starting offline sync job");
+        OfflineSync.Listener listener = new OfflineSync.Listener() {
+            @Override
+            public void onSynced(boolean success) {
+                Log.d(TAG, "Finished offline sync job: " + success);
+                jobFinished(params, !success);
+            }
+        };
+        synchronized (this) {
+            this.listener = listener;
+        }
+        OfflineSync.getInstance(this).sync(listener);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "Stopping offline sync job");
+        OfflineSync.Listener listener;
+        synchronized (this) {
+            listener = this.listener;
+            this.listener = null;
+        }
+        if (listener != null) {
+            OfflineSync.getInstance(this).stop(listener);
+        }
+        return true;
+    }
+}
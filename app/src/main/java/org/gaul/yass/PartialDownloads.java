@@ -0,0 +1,175 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Progress of incomplete downloads, so that a download interrupted by cancellation, process death
+ * or a network error resumes where it stopped.  Downloads are identified by their
+ * {@link BlobCache#id}, which changes whenever the object does.  Single-stream downloads record
+ * the number of contiguous bytes written while ranged downloads record which parts completed.
+ */
+final class PartialDownloads {
+    /** Number of incomplete downloads to keep; older ones are abandoned. */
+    private static final int MAX_ENTRIES = 8;
+
+    private final SQLiteOpenHelper helper;
+
+    PartialDownloads(SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    static final class Entry {
+        final String id;
+        final long contentLength;
+        final long bytesWritten;
+        final boolean[] parts;
+
+        Entry(String id, long contentLength, long bytesWritten, boolean[] parts) {
+            this.id = id;
+            this.contentLength = contentLength;
+            this.bytesWritten = bytesWritten;
+            this.parts = parts;
+        }
+    }
+
+    synchronized Entry get(String id) {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        String[] projection = {"content_length", "bytes_written", "parts"};
+        Cursor cursor = db.query("partial_downloads", projection, "id = ?", new String[] {id},
+                null, null, null);
+        try {
+            if (!cursor.moveToNext()) {
+                return null;
+            }
+            return new Entry(id, cursor.getLong(0), cursor.getLong(1),
+                    decodeParts(cursor.getString(2)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Record the start of a download, replacing any earlier record for it.
+     *
+     * @return ids of abandoned downloads whose files the caller should delete, i.e., older
+     *         versions of the same key and the least recently updated entries beyond the limit
+     */
+    synchronized List<String> start(String id, String bucketName, String key, String eTag,
+            long contentLength, int numParts) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        List<String> abandoned = new ArrayList<>();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query("partial_downloads", new String[] {"id"},
+                    "bucket = ? AND key = ? AND id != ?", new String[] {bucketName, key, id},
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    abandoned.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            cursor = db.query("partial_downloads", new String[] {"id"}, "id != ?",
+                    new String[] {id}, null, null, "last_update DESC", null);
+            try {
+                int count = 1;
+                while (cursor.moveToNext()) {
+                    String other = cursor.getString(0);
+                    if (++count > MAX_ENTRIES && !abandoned.contains(other)) {
+                        abandoned.add(other);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            for (String other : abandoned) {
+                db.delete("partial_downloads", "id = ?", new String[] {other});
+            }
+
+            ContentValues values = new ContentValues();
+            values.put("id", id);
+            values.put("bucket", bucketName);
+            values.put("key", key);
+            values.put("e_tag", eTag);
+            values.put("content_length", contentLength);
+            values.put("bytes_written", 0);
+            values.put("parts", encodeParts(new boolean[numParts]));
+            values.put("last_update", System.currentTimeMillis());
+            db.insertWithOnConflict("partial_downloads", null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return abandoned;
+    }
+
+    synchronized void updateBytesWritten(String id, long bytesWritten) {
+        ContentValues values = new ContentValues();
+        values.put("bytes_written", bytesWritten);
+        values.put("last_update", System.currentTimeMillis());
+        helper.getWritableDatabase().update("partial_downloads", values, "id = ?",
+                new String[] {id});
+    }
+
+    /** Mark a part complete; called concurrently from download workers. */
+    synchronized void completePart(String id, int part, long partSize) {
+        Entry entry = get(id);
+        if (entry == null) {
+            return;
+        }
+        entry.parts[part] = true;
+        ContentValues values = new ContentValues();
+        values.put("bytes_written", entry.bytesWritten + partSize);
+        values.put("parts", encodeParts(entry.parts));
+        values.put("last_update", System.currentTimeMillis());
+        helper.getWritableDatabase().update("partial_downloads", values, "id = ?",
+                new String[] {id});
+    }
+
+    synchronized void remove(String id) {
+        helper.getWritableDatabase().delete("partial_downloads", "id = ?", new String[] {id});
+    }
+
+    private static String encodeParts(boolean[] parts) {
+        char[] chars = new char[parts.length];
+        Arrays.fill(chars, '0');
+        for (int i = 0; i < parts.length; ++i) {
+            if (parts[i]) {
+                chars[i] = '1';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static boolean[] decodeParts(String encoded) {
+        boolean[] parts = new boolean[encoded.length()];
+        for (int i = 0; i < parts.length; ++i) {
+            parts[i] = encoded.charAt(i) == '1';
+        }
+        return parts;
+    }
+}
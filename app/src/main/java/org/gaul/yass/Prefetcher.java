@@ -0,0 +1,241 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opportunistically warms the listing and blob caches while the user is idle on a listing.  The
+ * visible folders are listed into {@link ListingCache} and small visible images are downloaded
+ * into {@link BlobCache} so that drilling into a photo folder or opening a photo is served
+ * locally.  Work is bounded by a concurrency limit and a per-prefix byte budget, is skipped on
+ * metered networks and is abandoned as soon as the user moves to another prefix.
+ */
+final class Prefetcher {
+    private static final String TAG = "Prefetcher";
+    /** Delay after scrolling stops before prefetching so that flings do not trigger work. */
+    static final long IDLE_DELAY_MILLIS = 1000;
+    private static final int CONCURRENCY = 2;
+    private static final int MAX_FOLDERS = 8;
+    private static final int MAX_OBJECTS = 16;
+    /** Larger listings are not cached anyway and would delay the other prefetches. */
+    private static final int MAX_LISTING_PAGES = 10;
+    private static final long MAX_OBJECT_BYTES = 2 * 1024 * 1024;
+    private static final long MAX_PREFIX_BYTES = 16 * 1024 * 1024;
+
+    private final Context context;
+    private final AmazonS3 client;
+    private final String endpoint;
+    private final String bucketName;
+    private final ListingCache listingCache;
+    private final BlobDownloader downloader;
+    private final ThreadPoolExecutor executor;
+    /** Incremented to abandon queued and running prefetches. */
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicLong remainingBytes = new AtomicLong();
+    // guarded by this
+    private String prefix;
+    private final Set<String> attempted = new HashSet<>();
+
+    Prefetcher(Context context, MainActivity.YassPreferences preferences, AmazonS3 client,
+            ListingCache listingCache, BlobDownloader downloader) {
+        this.context = context.getApplicationContext();
+        this.client = client;
+        this.endpoint = preferences.endpoint;
+        this.bucketName = preferences.bucketName;
+        this.listingCache = listingCache;
+        this.downloader = downloader;
+        this.executor = new ThreadPoolExecutor(CONCURRENCY, CONCURRENCY, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Prefetch the visible entries of prefix, folders first, skipping earlier attempts. */
+    void prefetch(String prefix, List<BlobEntry> visible) {
+        if (!isUnmetered()) {
+            Log.d(TAG, "Skipping prefetch on metered or missing network");
+            return;
+        }
+        List<String> folders = new ArrayList<>();
+        List<BlobEntry> objects = new ArrayList<>();
+        synchronized (this) {
+            if (!prefix.equals(this.prefix)) {
+                cancel();
+                this.prefix = prefix;
+                remainingBytes.set(MAX_PREFIX_BYTES);
+            }
+            for (BlobEntry entry : visible) {
+                if (entry.folder) {
+                    if (folders.size() < MAX_FOLDERS && attempted.add(entry.name)) {
+                        folders.add(prefix + entry.name);
+                    }
+                } else if (objects.size() < MAX_OBJECTS && entry.size <= MAX_OBJECT_BYTES &&
+                        isImage(entry.name) && attempted.add(entry.name)) {
+                    objects.add(entry);
+                }
+            }
+        }
+        int current = generation.get();
+        for (String folder : folders) {
+            executor.execute(new ListingTask(current, folder));
+        }
+        for (BlobEntry entry : objects) {
+            executor.execute(new ObjectTask(current, prefix + entry.name, entry.size));
+        }
+    }
+
+    /** Abandon all queued and running prefetches. */
+    void cancel() {
+        generation.incrementAndGet();
+        executor.getQueue().clear();
+        synchronized (this) {
+            prefix = null;
+            attempted.clear();
+        }
+    }
+
+    void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+
+    private boolean isUnmetered() {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnected() &&
+                !cm.isActiveNetworkMetered();
+    }
+
+    static boolean isImage(String name) {
+        int index = name.lastIndexOf('.');
+        if (index == -1) {
+            return false;
+        }
+        String mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                name.substring(index + 1).toLowerCase(Locale.US));
+        return mime != null && mime.startsWith("image/");
+    }
+
+    private final class ListingTask implements Runnable {
+        private final int generation;
+        private final String prefix;
+
+        ListingTask(int generation, String prefix) {
+            this.generation = generation;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled(generation) ||
+                    listingCache.get(endpoint, bucketName, prefix) != null) {
+                return;
+            }
+            final ListingCache.Validator validator = new ListingCache.Validator();
+            final List<BlobEntry> allEntries = new ArrayList<>();
+            try {
+                boolean complete = ObjectLister.list(client, bucketName, prefix, true,
+                        MAX_LISTING_PAGES, Metrics.LIST_STATS, new ObjectLister.PageHandler() {
+                            @Override
+                            public boolean onPage(ObjectListing page) {
+                                BlobEntry.mergeSorted(allEntries,
+                                        ListingCache.toEntries(page, prefix, validator));
+                                return !isCancelled(generation);
+                            }
+                        });
+                if (!complete) {
+                    return;
+                }
+            } catch (AmazonClientException ace) {
+                Log.d(TAG, "Error prefetching listing: " + prefix + " " + ace.getMessage());
+                return;
+            }
+            Log.d(TAG, "prefetched listing: " + prefix);
+            listingCache.put(endpoint, bucketName, prefix, allEntries, validator.finish());
+        }
+    }
+
+    private final class ObjectTask implements Runnable {
+        private final int generation;
+        private final String key;
+        private final long size;
+
+        ObjectTask(int generation, String key, long size) {
+            this.generation = generation;
+            this.key = key;
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled(generation)) {
+                return;
+            }
+            if (remainingBytes.addAndGet(-size) < 0) {
+                remainingBytes.addAndGet(size);
+                Log.d(TAG, "Prefetch budget exhausted, skipping: " + key);
+                return;
+            }
+            try {
+                ObjectMetadata metadata = client.getObjectMetadata(bucketName, key);
+                if (metadata.getContentLength() > MAX_OBJECT_BYTES) {
+                    return;
+                }
+                downloader.download(bucketName, key, metadata, new BlobDownloader.Listener() {
+                    @Override
+                    public void onProgress(long bytesTransferred) {
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return Prefetcher.this.isCancelled(generation);
+                    }
+                });
+                Log.d(TAG, "prefetched: " + key);
+            } catch (AmazonClientException ace) {
+                Log.d(TAG, "Error prefetching: " + key + " " + ace.getMessage());
+            } catch (IOException ioe) {
+                Log.d(TAG, "Error prefetching: " + key + " " + ioe.getMessage());
+            }
+        }
+    }
+
+    private boolean isCancelled(int generation) {
+        return generation != this.generation.get();
+    }
+}
@@ -0,0 +1,160 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Named connection settings: credentials, endpoint and bucket.  Each profile keeps its settings
+ * in its own SharedPreferences file so that the settings screen can edit it directly, while the
+ * default preferences list the profiles and name the active one and the camera upload targets.
+ * Caches are keyed by endpoint and bucket, so switching profiles reuses what each one cached.
+ * Settings from before profiles existed become the default profile.
+ */
+final class Profile {
+    static final String DEFAULT = "default";
+    static final String ACTIVE_KEY = "profile";
+    static final String UPLOAD_KEY = "upload_profile";
+    static final String BACKUP_KEY = "backup_profile";
+    private static final String NAMES_KEY = "profiles";
+    private static final String[] CONNECTION_KEYS = {
+            "access_key",
+            "secret_key",
+            "bucket_name",
+            "endpoint"
+    };
+
+    final String name;
+    final String accessKey;
+    final String secretKey;
+    final String bucketName;
+    final String endpoint;
+
+    private Profile(String name, SharedPreferences prefs) {
+        this.name = name;
+        // TODO: should default values be null?
+        this.accessKey = prefs.getString("access_key", "access_key");
+        this.secretKey = prefs.getString("secret_key", "secret_key");
+        this.bucketName = prefs.getString("bucket_name", "bucket_name");
+        this.endpoint = prefs.getString("endpoint", null);
+    }
+
+    /** Name of the SharedPreferences file holding the settings of profile name. */
+    static String fileName(String name) {
+        // names are free text, file names are not
+        return "profile_" + BlobCache.digest(name);
+    }
+
+    static SharedPreferences preferences(Context context, String name) {
+        return context.getSharedPreferences(fileName(name), Context.MODE_PRIVATE);
+    }
+
+    /** Profile names in alphabetical order; there is always at least one. */
+    static synchronized List<String> names(Context context) {
+        List<String> names = new ArrayList<>(migrate(context).getStringSet(NAMES_KEY,
+                Collections.<String>emptySet()));
+        Collections.sort(names);
+        return names;
+    }
+
+    /** Profile name or null if there is no such profile. */
+    static Profile load(Context context, String name) {
+        if (name == null || !names(context).contains(name)) {
+            return null;
+        }
+        return new Profile(name, preferences(context, name));
+    }
+
+    /** The profile the browser shows, falling back to the first if it was deleted. */
+    static Profile active(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Profile profile = load(context, prefs.getString(ACTIVE_KEY, DEFAULT));
+        return profile != null ? profile : load(context, names(context).get(0));
+    }
+
+    /** Add an empty profile, returning false if name is blank or already used. */
+    static synchronized boolean create(Context context, String name) {
+        name = name.trim();
+        SharedPreferences prefs = migrate(context);
+        Set<String> names = new HashSet<>(prefs.getStringSet(NAMES_KEY,
+                Collections.<String>emptySet()));
+        if (name.isEmpty() || !names.add(name)) {
+            return false;
+        }
+        preferences(context, name).edit().clear().apply();
+        prefs.edit().putStringSet(NAMES_KEY, names).apply();
+        return true;
+    }
+
+    /**
+     * Remove profile name unless it is the last one.  Preferences which named it fall back to
+     * another profile, or to no backup.
+     */
+    static synchronized boolean delete(Context context, String name) {
+        SharedPreferences prefs = migrate(context);
+        Set<String> names = new HashSet<>(prefs.getStringSet(NAMES_KEY,
+                Collections.<String>emptySet()));
+        if (names.size() <= 1 || !names.remove(name)) {
+            return false;
+        }
+        List<String> remaining = new ArrayList<>(names);
+        Collections.sort(remaining);
+        SharedPreferences.Editor editor = prefs.edit().putStringSet(NAMES_KEY, names);
+        if (name.equals(prefs.getString(ACTIVE_KEY, null))) {
+            editor.putString(ACTIVE_KEY, remaining.get(0));
+        }
+        if (name.equals(prefs.getString(UPLOAD_KEY, null))) {
+            editor.putString(UPLOAD_KEY, remaining.get(0));
+        }
+        if (name.equals(prefs.getString(BACKUP_KEY, null))) {
+            editor.remove(BACKUP_KEY);
+        }
+        editor.apply();
+        preferences(context, name).edit().clear().apply();
+        return true;
+    }
+
+    /** Move connection settings from before profiles into the default profile once. */
+    private static SharedPreferences migrate(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.contains(NAMES_KEY)) {
+            return prefs;
+        }
+        SharedPreferences.Editor profile = preferences(context, DEFAULT).edit();
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : CONNECTION_KEYS) {
+            String value = prefs.getString(key, null);
+            if (value != null) {
+                profile.putString(key, value);
+            }
+            editor.remove(key);
+        }
+        profile.apply();
+        editor.putStringSet(NAMES_KEY, Collections.singleton(DEFAULT))
+                .putString(ACTIVE_KEY, DEFAULT)
+                .putString(UPLOAD_KEY, DEFAULT)
+                .apply();
+        return prefs;
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches an object as fixed-size byte ranges on several workers, each writing its range at
+ * its offset in a preallocated file.  Every request carries If-Match so that the parts of one
+ * file all come from the same version.  It uses no Android APIs; {@link BlobDownloader} persists
+ * completed parts and records metrics through the {@link Listener}, and the same code runs on a
+ * plain JVM against any S3 endpoint.
+ */
+final class RangedDownload {
+    static final long PART_SIZE = 8 * 1024 * 1024;
+
+    private RangedDownload() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /** Called from worker threads. */
+    interface Listener {
+        void onProgress(long bytesTransferred);
+
+        boolean isCancelled();
+
+        /** @param startNanos System.nanoTime when the request for a range was sent */
+        void onFirstByte(long startNanos);
+
+        /** Called once part has been written in full. */
+        void onPartComplete(int part, long startNanos, long length);
+    }
+
+    /** The object no longer matches the ETag the download started with. */
+    static final class ChangedException extends IOException {
+        ChangedException(String key) {
+            super("Blob changed while downloading: " + key);
+        }
+    }
+
+    static int numParts(long contentLength) {
+        return (int) ((contentLength + PART_SIZE - 1) / PART_SIZE);
+    }
+
+    /** Exclusive end offset of a part. */
+    static long partEnd(int part, long contentLength) {
+        return Math.min((part + 1) * PART_SIZE, contentLength);
+    }
+
+    /**
+     * Fetch the parts of key not yet marked in parts into file, which is extended to
+     * contentLength, on up to concurrency workers from executor.
+     *
+     * @param eTag which every range must match, or null to accept any version
+     * @return true if every part was written, false if listener cancelled the download
+     * @throws ChangedException if the object no longer matches eTag
+     */
+    static boolean download(final AmazonS3 client, ExecutorService executor, int concurrency,
+            final String bucketName, final String key, final String eTag,
+            final long contentLength, final boolean[] parts, File file,
+            final Listener listener) throws IOException {
+        final AtomicLong progress = new AtomicLong();
+        int remaining = 0;
+        for (int part = 0; part < parts.length; ++part) {
+            if (parts[part]) {
+                progress.addAndGet(partEnd(part, contentLength) - part * PART_SIZE);
+            } else {
+                ++remaining;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(contentLength);
+            final FileChannel channel = raf.getChannel();
+            return Workers.run(executor, Math.min(concurrency, remaining), parts.length,
+                    new Workers.Task() {
+                        @Override
+                        public boolean run(int part) throws IOException {
+                            if (parts[part]) {
+                                return true;
+                            }
+                            return downloadRange(client, bucketName, key, eTag, part,
+                                    partEnd(part, contentLength), channel, progress, listener);
+                        }
+                    });
+        }
+    }
+
+    /** Fetch part, ending at end, into channel at its offset. */
+    private static boolean downloadRange(AmazonS3 client, String bucketName, String key,
+            String eTag, int part, long end, FileChannel channel, final AtomicLong progress,
+            final Listener listener) throws IOException {
+        long start = part * PART_SIZE;
+        GetObjectRequest request = newRequest(bucketName, key, eTag);
+        request.setRange(start, end - 1);
+        long startNanos = System.nanoTime();
+        S3Object object = client.getObject(request);
+        if (object == null) {
+            throw new ChangedException(key);
+        }
+        listener.onFirstByte(startNanos);
+        long position;
+        S3ObjectInputStream is = object.getObjectContent();
+        try {
+            position = TransferEngine.copy(is, channel, start, end,
+                    new TransferEngine.Callback() {
+                        @Override
+                        public void onWritten(long position, int count) {
+                            listener.onProgress(progress.addAndGet(count));
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return listener.isCancelled();
+                        }
+                    });
+            if (listener.isCancelled()) {
+                is.abort();
+                return false;
+            }
+        } catch (IOException ioe) {
+            is.abort();
+            throw ioe;
+        } finally {
+            is.close();
+        }
+        if (position != end) {
+            throw new IOException("Short range for " + key + ": expected " + (end - start) +
+                    " bytes, received " + (position - start));
+        }
+        listener.onPartComplete(part, startNanos, end - start);
+        return true;
+    }
+
+    /** GET of key which the SDK answers with null if the object no longer matches eTag. */
+    static GetObjectRequest newRequest(String bucketName, String key, String eTag) {
+        GetObjectRequest request = new GetObjectRequest(bucketName, key);
+        if (eTag != null) {
+            request.setMatchingETagConstraints(Collections.singletonList(eTag));
+        }
+        return request;
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide S3 clients, one per profile.  The activity and the upload scheduler share them,
+ * and with them the pool of kept-alive HTTP connections; a profile's client is only rebuilt when
+ * a setting it depends on changes, so switching profiles reuses the client already built.
+ */
+final class S3ClientProvider {
+    private static final String TAG = "S3ClientProvider";
+
+    /** The SDK's default retry condition, counting the retries it allows. */
+    private static final RetryPolicy.RetryCondition COUNTING_RETRY_CONDITION =
+            new RetryPolicy.RetryCondition() {
+                @Override
+                public boolean shouldRetry(AmazonWebServiceRequest originalRequest,
+                        AmazonClientException exception, int retriesAttempted) {
+                    boolean retry = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(
+                            originalRequest, exception, retriesAttempted);
+                    if (retry) {
+                        Metrics.count(Metrics.RETRY);
+                    }
+                    return retry;
+                }
+            };
+
+    /** Clients by profile name, each with the settings it was built from. */
+    private static final Map<String, AmazonS3> clients = new HashMap<>();
+    private static final Map<String, List<Object>> clientKeys = new HashMap<>();
+    private static boolean connectionPoolConfigured;
+
+    private S3ClientProvider() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /** Client for profile with the network settings in preferences. */
+    static synchronized AmazonS3 getClient(MainActivity.YassPreferences preferences,
+            Profile profile) {
+        List<Object> key = Arrays.<Object>asList(profile.accessKey, profile.secretKey,
+                profile.endpoint, preferences.maxConnections, preferences.socketTimeout,
+                preferences.connectionTimeout, preferences.maxErrorRetry);
+        AmazonS3 client = clients.get(profile.name);
+        if (client != null && key.equals(clientKeys.get(profile.name))) {
+            return client;
+        }
+        configureConnectionPool(preferences);
+
+        Log.d(TAG, "Creating S3 client for profile " + profile.name + " and endpoint: " +
+                profile.endpoint);
+        BasicAWSCredentials awsCreds = new BasicAWSCredentials(profile.accessKey,
+                profile.secretKey);
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setMaxConnections(preferences.maxConnections);
+        configuration.setSocketTimeout(preferences.socketTimeout);
+        configuration.setConnectionTimeout(preferences.connectionTimeout);
+        configuration.setMaxErrorRetry(preferences.maxErrorRetry);
+        configuration.setRetryPolicy(new RetryPolicy(COUNTING_RETRY_CONDITION,
+                PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY,
+                PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true));
+        AmazonS3Client newClient = new AmazonS3Client(awsCreds, configuration);
+        if (profile.endpoint != null && !profile.endpoint.isEmpty()) {
+            newClient.setEndpoint(profile.endpoint);
+        }
+        clients.put(profile.name, newClient);
+        clientKeys.put(profile.name, key);
+        return newClient;
+    }
+
+    /**
+     * The SDK sends requests through HttpURLConnection, whose process-wide connection pool reads
+     * these properties once when it is first used.  Later changes take effect after a restart.
+     */
+    private static void configureConnectionPool(MainActivity.YassPreferences preferences) {
+        if (connectionPoolConfigured) {
+            return;
+        }
+        System.setProperty("http.keepAlive", String.valueOf(preferences.keepAlive));
+        System.setProperty("http.maxConnections", String.valueOf(preferences.maxConnections));
+        connectionPoolConfigured = true;
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local index of keys found by recursive listings, used to answer repeated searches without
+ * listing the bucket again.  Keys live in search_index with an external content FTS4 table over
+ * their folded form; search_scopes records which prefixes were completely crawled and when.  A
+ * search is answered locally if the searched prefix lies within a scope younger than
+ * MAX_AGE_MILLIS.
+ */
+final class SearchIndex {
+    static final long MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+    private final SQLiteOpenHelper helper;
+
+    SearchIndex(SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    /** Whether prefix or an enclosing prefix was completely crawled recently. */
+    boolean isFresh(String endpoint, String bucket, String prefix) {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        String[] projection = {"prefix"};
+        String selection = "endpoint = ? AND bucket = ? AND indexed_at > ?";
+        String[] selectionArgs = {Sql.nullToEmpty(endpoint), bucket,
+                String.valueOf(System.currentTimeMillis() - MAX_AGE_MILLIS)};
+        Cursor cursor = db.query("search_scopes", projection, selection, selectionArgs,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (prefix.startsWith(cursor.getString(0))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Forget keys under prefix before crawling it again.  Scopes overlapping prefix are no
+     * longer complete until {@link #finishCrawl} is called.
+     */
+    void beginCrawl(String endpoint, String bucket, String prefix) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            List<String> args = new ArrayList<>();
+            String selection = "endpoint = ? AND bucket = ?" + Sql.keyRange(prefix, args);
+            args.add(0, Sql.nullToEmpty(endpoint));
+            args.add(1, bucket);
+            db.delete("search_index", selection, args.toArray(new String[args.size()]));
+
+            String[] scopeArgs = {Sql.nullToEmpty(endpoint), bucket};
+            Cursor cursor = db.query("search_scopes", new String[] {"prefix"},
+                    "endpoint = ? AND bucket = ?", scopeArgs, null, null, null);
+            List<String> overlapping = new ArrayList<>();
+            try {
+                while (cursor.moveToNext()) {
+                    String scope = cursor.getString(0);
+                    if (scope.startsWith(prefix) || prefix.startsWith(scope)) {
+                        overlapping.add(scope);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            for (String scope : overlapping) {
+                db.delete("search_scopes", "endpoint = ? AND bucket = ? AND prefix = ?",
+                        new String[] {Sql.nullToEmpty(endpoint), bucket, scope});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Index objects named by their full key, e.g., one page of a recursive listing. */
+    void add(String endpoint, String bucket, List<BlobEntry> objects) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO search_index" +
+                " (endpoint, bucket, object_key, folded_key, size, last_modified)" +
+                " VALUES (?, ?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (BlobEntry object : objects) {
+                insert.bindString(1, Sql.nullToEmpty(endpoint));
+                insert.bindString(2, bucket);
+                insert.bindString(3, object.name);
+                insert.bindString(4, SearchQuery.fold(object.name));
+                insert.bindLong(5, object.size);
+                insert.bindLong(6, object.lastModified);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /** Record that every key under prefix has been indexed. */
+    void finishCrawl(String endpoint, String bucket, String prefix) {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("endpoint", Sql.nullToEmpty(endpoint));
+        values.put("bucket", bucket);
+        values.put("prefix", prefix);
+        values.put("indexed_at", System.currentTimeMillis());
+        db.insertWithOnConflict("search_scopes", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /** Indexed objects under prefix matching query, named relative to prefix and sorted. */
+    List<BlobEntry> search(String endpoint, String bucket, String prefix, SearchQuery query) {
+        List<String> args = new ArrayList<>();
+        args.add(Sql.nullToEmpty(endpoint));
+        args.add(bucket);
+        String sql = "SELECT object_key, size, last_modified FROM search_index" +
+                " WHERE endpoint = ? AND bucket = ?" + Sql.keyRange(prefix, args) +
+                query.toSql(prefix, args) + " ORDER BY object_key";
+        SQLiteDatabase db = helper.getReadableDatabase();
+        List<BlobEntry> results = new ArrayList<>();
+        Cursor cursor = db.rawQuery(sql, args.toArray(new String[args.size()]));
+        try {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0);
+                if (isResult(prefix, key)) {
+                    results.add(BlobEntry.object(key.substring(prefix.length()),
+                            cursor.getLong(1), cursor.getLong(2)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return results;
+    }
+
+    /** Whether key under prefix can be a search result; prefix markers are not. */
+    static boolean isResult(String prefix, String key) {
+        return !key.equals(prefix) && !key.endsWith("/");
+    }
+}
@@ -0,0 +1,235 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed search over keys.  A query is whitespace-separated terms which must all match:
+ * size&gt;N and size&lt;N with optional K, M or G suffix, after:YYYY-MM-DD and
+ * before:YYYY-MM-DD on the modification time, globs containing * or ? matched against the key
+ * relative to the searched prefix, and otherwise case-insensitive substrings.  The same query
+ * filters listing pages in memory and compiles to SQL over {@link SearchIndex}.
+ */
+final class SearchQuery {
+    private final List<String> substrings = new ArrayList<>();
+    private final List<String> globs = new ArrayList<>();
+    private final List<Pattern> globPatterns = new ArrayList<>();
+    private long minSize = -1;
+    private long maxSize = Long.MAX_VALUE;
+    private long after = Long.MIN_VALUE;
+    private long before = Long.MAX_VALUE;
+
+    private SearchQuery() {
+    }
+
+    static SearchQuery parse(String query) throws ParseException {
+        SearchQuery result = new SearchQuery();
+        for (String term : query.trim().split("\\s+")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+            String lower = fold(term);
+            if (lower.startsWith("size>")) {
+                result.minSize = parseSize(term.substring(5)) + 1;
+            } else if (lower.startsWith("size<")) {
+                result.maxSize = parseSize(term.substring(5)) - 1;
+            } else if (lower.startsWith("after:")) {
+                result.after = parseDate(term.substring(6));
+            } else if (lower.startsWith("before:")) {
+                result.before = parseDate(term.substring(7));
+            } else if (term.indexOf('*') != -1 || term.indexOf('?') != -1) {
+                result.globs.add(term);
+                result.globPatterns.add(globToPattern(term));
+            } else {
+                result.substrings.add(lower);
+            }
+        }
+        return result;
+    }
+
+    /** Whether an object named relative to the searched prefix matches every term. */
+    boolean matches(String name, long size, long lastModified) {
+        if (size < minSize || size > maxSize || lastModified < after ||
+                lastModified >= before) {
+            return false;
+        }
+        String lower = fold(name);
+        for (String substring : substrings) {
+            if (!lower.contains(substring)) {
+                return false;
+            }
+        }
+        for (Pattern pattern : globPatterns) {
+            if (!pattern.matcher(name).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Case folding applied to search terms and to the keys stored in search_index alike.  The
+     * FTS tokenizer and LIKE only fold ASCII, so the index stores folded keys instead of relying
+     * on them.
+     */
+    static String fold(String string) {
+        return string.toLowerCase(Locale.US);
+    }
+
+    /**
+     * SQL condition over search_index rows under prefix, appending its arguments to args.
+     * Substrings are matched with LIKE on the folded key; where a substring contains whole
+     * words, the FTS index first narrows the candidates so that most searches avoid scanning
+     * every key.
+     */
+    String toSql(String prefix, List<String> args) {
+        StringBuilder sql = new StringBuilder();
+        List<String> ftsTerms = new ArrayList<>();
+        for (String substring : substrings) {
+            sql.append(" AND folded_key LIKE ? ESCAPE '\\'");
+            args.add(escapeLike(fold(prefix)) + "%" + escapeLike(substring) + "%");
+            ftsTerms.addAll(ftsTerms(substring));
+        }
+        for (String glob : globs) {
+            sql.append(" AND object_key GLOB ?");
+            args.add(escapeGlob(prefix) + glob.replace("[", "[[]"));
+        }
+        if (minSize >= 0) {
+            sql.append(" AND size >= ?");
+            args.add(String.valueOf(minSize));
+        }
+        if (maxSize != Long.MAX_VALUE) {
+            sql.append(" AND size <= ?");
+            args.add(String.valueOf(maxSize));
+        }
+        if (after != Long.MIN_VALUE) {
+            sql.append(" AND last_modified >= ?");
+            args.add(String.valueOf(after));
+        }
+        if (before != Long.MAX_VALUE) {
+            sql.append(" AND last_modified < ?");
+            args.add(String.valueOf(before));
+        }
+        if (!ftsTerms.isEmpty()) {
+            StringBuilder match = new StringBuilder();
+            for (String term : ftsTerms) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append('"').append(term).append('"');
+            }
+            sql.append(" AND rowid IN (SELECT docid FROM search_index_fts" +
+                    " WHERE search_index_fts MATCH ?)");
+            args.add(match.toString());
+        }
+        return sql.toString();
+    }
+
+    /**
+     * FTS terms implied by a substring.  The simple tokenizer splits keys on ASCII punctuation,
+     * so a run of word characters delimited on both sides within the substring must be a whole
+     * token and one delimited on the left must begin a token.  Runs touching either end of the
+     * substring on the left may lie inside a token and cannot use the index.
+     */
+    private static List<String> ftsTerms(String substring) {
+        List<String> terms = new ArrayList<>();
+        int i = 0;
+        while (i < substring.length()) {
+            if (!isTokenChar(substring.charAt(i))) {
+                ++i;
+                continue;
+            }
+            int start = i;
+            while (i < substring.length() && isTokenChar(substring.charAt(i))) {
+                ++i;
+            }
+            if (start == 0) {
+                continue;
+            }
+            String run = substring.substring(start, i);
+            terms.add(i < substring.length() ? run : run + "*");
+        }
+        return terms;
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || Character.isLetterOrDigit(c);
+    }
+
+    private static long parseSize(String value) throws ParseException {
+        long multiplier = 1;
+        String lower = value.toLowerCase(Locale.US);
+        if (lower.endsWith("k")) {
+            multiplier = 1024;
+        } else if (lower.endsWith("m")) {
+            multiplier = 1024 * 1024;
+        } else if (lower.endsWith("g")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            lower = lower.substring(0, lower.length() - 1);
+        }
+        try {
+            return Long.parseLong(lower) * multiplier;
+        } catch (NumberFormatException nfe) {
+            throw new ParseException("Invalid size: " + value, 0);
+        }
+    }
+
+    private static long parseDate(String value) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        format.setLenient(false);
+        return format.parse(value).getTime();
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    private static String escapeGlob(String value) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '*' || c == '?' || c == '[') {
+                sb.append('[').append(c).append(']');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -15,17 +15,38 @@
 
 package org.gaul.yass;
 
+import android.content.Intent;
 import android.os.Bundle;
+import android.preference.ListPreference;
+import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.support.v7.app.AppCompatActivity;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public final class SettingsActivity extends AppCompatActivity {
+    /** Name of the profile to edit instead of the global settings. */
+    static final String EXTRA_PROFILE = "org.gaul.yass.PROFILE";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        String profile = getIntent().getStringExtra(EXTRA_PROFILE);
+        PreferenceFragment fragment;
+        if (profile == null) {
+            fragment = new SettingsFragment();
+        } else {
+            setTitle(profile);
+            Bundle arguments = new Bundle();
+            arguments.putString(EXTRA_PROFILE, profile);
+            fragment = new ProfileFragment();
+            fragment.setArguments(arguments);
+        }
         getFragmentManager().beginTransaction()
-                .replace(android.R.id.content, new SettingsFragment())
+                .replace(android.R.id.content, fragment)
                 .commit();
     }
 
@@ -33,7 +54,89 @@ public final class SettingsActivity extends AppCompatActivity {
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
+            // create the default profile before the lists read their values
+            Profile.names(getActivity());
             addPreferencesFromResource(R.xml.preferences);
+
+            findPreference("edit_profile").setOnPreferenceClickListener(
+                    new Preference.OnPreferenceClickListener() {
+                        @Override
+                        public boolean onPreferenceClick(Preference preference) {
+                            editProfile(Profile.active(getActivity()).name);
+                            return true;
+                        }
+                    });
+            findPreference("new_profile").setOnPreferenceChangeListener(
+                    new Preference.OnPreferenceChangeListener() {
+                        @Override
+                        public boolean onPreferenceChange(Preference preference, Object value) {
+                            String name = ((String) value).trim();
+                            if (Profile.create(getActivity(), name)) {
+                                editProfile(name);
+                            } else {
+                                Toast.makeText(getActivity(), "Profile name is empty or in use",
+                                        Toast.LENGTH_LONG).show();
+                            }
+                            // the name is not a setting of its own
+                            return false;
+                        }
+                    });
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            // profiles may have been added or deleted by the profile editor
+            List<String> names = Profile.names(getActivity());
+            String[] values = names.toArray(new String[names.size()]);
+            setEntries("profile", values, values);
+            setEntries("upload_profile", values, values);
+            List<String> backupValues = new ArrayList<>(names);
+            backupValues.add(0, "");
+            List<String> backupEntries = new ArrayList<>(names);
+            backupEntries.add(0, getString(R.string.pref_backup_profile_none));
+            setEntries("backup_profile",
+                    backupEntries.toArray(new String[backupEntries.size()]),
+                    backupValues.toArray(new String[backupValues.size()]));
+        }
+
+        private void setEntries(String key, String[] entries, String[] values) {
+            ListPreference preference = (ListPreference) findPreference(key);
+            preference.setEntries(entries);
+            preference.setEntryValues(values);
+            // show the value Profile.delete may have changed underneath the preference
+            preference.setValue(getPreferenceManager().getSharedPreferences()
+                    .getString(key, ""));
+        }
+
+        private void editProfile(String name) {
+            startActivity(new Intent(getActivity(), SettingsActivity.class)
+                    .putExtra(EXTRA_PROFILE, name));
+        }
+    }
+
+    /** Edits the connection settings stored in one profile's preferences file. */
+    public static final class ProfileFragment extends PreferenceFragment {
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            final String name = getArguments().getString(EXTRA_PROFILE);
+            getPreferenceManager().setSharedPreferencesName(Profile.fileName(name));
+            addPreferencesFromResource(R.xml.profile);
+
+            findPreference("delete_profile").setOnPreferenceClickListener(
+                    new Preference.OnPreferenceClickListener() {
+                        @Override
+                        public boolean onPreferenceClick(Preference preference) {
+                            if (Profile.delete(getActivity(), name)) {
+                                getActivity().finish();
+                            } else {
+                                Toast.makeText(getActivity(), "Cannot delete the only profile",
+                                        Toast.LENGTH_LONG).show();
+                            }
+                            return true;
+                        }
+                    });
         }
     }
 }
@@ -0,0 +1,45 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.util.List;
+
+/** SQL fragments shared by the tables keyed by endpoint, bucket and object key. */
+final class Sql {
+    private Sql() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    /**
+     * Condition selecting object keys which start with prefix, appending its arguments to args.
+     * Unlike LIKE, the comparisons can use an index on object_key.
+     */
+    static String keyRange(String prefix, List<String> args) {
+        if (prefix.isEmpty()) {
+            return "";
+        }
+        // TEXT compares as UTF-8 bytes, which orders like code points
+        char last = prefix.charAt(prefix.length() - 1);
+        args.add(prefix);
+        args.add(prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+        return " AND object_key >= ? AND object_key < ?";
+    }
+
+    /** Value of an endpoint column; the default endpoint is stored as the empty string. */
+    static String nullToEmpty(String endpoint) {
+        return endpoint == null ? "" : endpoint;
+    }
+}
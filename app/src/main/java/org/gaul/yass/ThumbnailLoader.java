@@ -0,0 +1,370 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads square thumbnails of image objects into list rows.  Thumbnails come from a memory LRU
+ * sized from the heap, then from a disk cache of small JPEGs, and only then from the object
+ * store: large JPEGs first try the EXIF thumbnail from a ranged GET of the header and otherwise
+ * the whole object is fetched and decoded with inSampleSize so that full-size bitmaps are never
+ * allocated.  Loads run newest first on a small pool and are cancelled, aborting their GET, when
+ * their row is recycled so that decoding never competes with scrolling.
+ */
+final class ThumbnailLoader {
+    private static final String TAG = "ThumbnailLoader";
+    private static final int CONCURRENCY = 3;
+    private static final long DISK_CACHE_BYTES = 32 * 1024 * 1024;
+    /** EXIF data lives in the JPEG APP1 segment which is at most 64 KB. */
+    private static final int EXIF_RANGE = 64 * 1024;
+    /** Smaller JPEGs are cheaper to fetch whole than to probe for an EXIF thumbnail. */
+    private static final long EXIF_THRESHOLD = 256 * 1024;
+    private static final long MAX_FULL_BYTES = 16 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 85;
+
+    private final int sizePx;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final BlobCache diskCache;
+    private final ThreadPoolExecutor executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile AmazonS3 client;
+    private volatile String endpoint;
+    private volatile String bucketName;
+
+    ThumbnailLoader(Context context, AmazonS3 client, String endpoint, String bucketName,
+            int sizePx) {
+        this.client = client;
+        this.endpoint = endpoint;
+        this.bucketName = bucketName;
+        this.sizePx = sizePx;
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int maxBytes = am.getMemoryClass() * 1024 * 1024 / 8;
+        this.memoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        this.diskCache = new BlobCache(context.getCacheDir(), "thumbnails", DISK_CACHE_BYTES);
+        this.executor = new ThreadPoolExecutor(CONCURRENCY, CONCURRENCY, 30, TimeUnit.SECONDS,
+                new LifoQueue());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Rows visible last are the ones the user is looking at. */
+    private static final class LifoQueue extends LinkedBlockingDeque<Runnable> {
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+    }
+
+    void setSource(AmazonS3 client, String endpoint, String bucketName) {
+        this.client = client;
+        this.endpoint = endpoint;
+        this.bucketName = bucketName;
+    }
+
+    /** Show the thumbnail of key in view, cancelling any earlier load into view. */
+    void load(String key, BlobEntry entry, ImageView view) {
+        cancel(view);
+        String bucketName = this.bucketName;
+        String id = BlobCache.digest(BlobCache.namespace(endpoint, bucketName), key,
+                entry.size + ":" + entry.lastModified, String.valueOf(sizePx));
+        Bitmap bitmap = memoryCache.get(id);
+        Metrics.lookup(Metrics.THUMBNAIL_MEMORY_CACHE, bitmap != null);
+        view.setImageBitmap(bitmap);
+        if (bitmap != null) {
+            return;
+        }
+        LoadTask task = new LoadTask(id, client, bucketName, key, entry.size, view);
+        view.setTag(task);
+        executor.execute(task);
+    }
+
+    /** Cancel the load into view, e.g., when its row is recycled. */
+    void cancel(ImageView view) {
+        Object tag = view.getTag();
+        if (tag instanceof LoadTask) {
+            LoadTask task = (LoadTask) tag;
+            task.cancel();
+            executor.remove(task);
+            view.setTag(null);
+        }
+    }
+
+    void shutdown() {
+        executor.getQueue().clear();
+        executor.shutdown();
+    }
+
+    private final class LoadTask implements Runnable {
+        private final String id;
+        private final AmazonS3 client;
+        private final String bucketName;
+        private final String key;
+        private final long size;
+        private final ImageView view;
+        private volatile boolean cancelled;
+        private volatile S3ObjectInputStream stream;
+
+        LoadTask(String id, AmazonS3 client, String bucketName, String key, long size,
+                ImageView view) {
+            this.id = id;
+            this.client = client;
+            this.bucketName = bucketName;
+            this.key = key;
+            this.size = size;
+            this.view = view;
+        }
+
+        void cancel() {
+            cancelled = true;
+            S3ObjectInputStream stream = this.stream;
+            if (stream != null) {
+                stream.abort();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            Bitmap bitmap = null;
+            File cached = diskCache.get(id);
+            if (cached != null) {
+                bitmap = BitmapFactory.decodeFile(cached.getPath());
+            }
+            Metrics.lookup(Metrics.THUMBNAIL_DISK_CACHE, bitmap != null);
+            if (bitmap == null) {
+                try {
+                    bitmap = fetch();
+                } catch (AmazonClientException ace) {
+                    if (!cancelled) {
+                        Log.d(TAG, "Error loading thumbnail: " + key + " " + ace.getMessage());
+                    }
+                    return;
+                } catch (IOException ioe) {
+                    if (!cancelled) {
+                        Log.d(TAG, "Error loading thumbnail: " + key + " " + ioe.getMessage());
+                    }
+                    return;
+                }
+            }
+            if (bitmap == null) {
+                return;
+            }
+            memoryCache.put(id, bitmap);
+            final Bitmap result = bitmap;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (view.getTag() == LoadTask.this) {
+                        view.setImageBitmap(result);
+                        view.setTag(null);
+                    }
+                }
+            });
+        }
+
+        /** Fetch and decode the thumbnail and write it to the disk cache. */
+        private Bitmap fetch() throws IOException {
+            File spool = diskCache.partialFile(id);
+            try {
+                int orientation = ExifInterface.ORIENTATION_UNDEFINED;
+                Bitmap bitmap = null;
+                if (isJpeg(key) && size > EXIF_THRESHOLD) {
+                    if (!download(spool, EXIF_RANGE)) {
+                        return null;
+                    }
+                    ExifInterface exif = new ExifInterface(spool.getPath());
+                    orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                            ExifInterface.ORIENTATION_UNDEFINED);
+                    byte[] thumbnail = exif.getThumbnail();
+                    if (thumbnail != null) {
+                        bitmap = decodeSampled(thumbnail, null);
+                    }
+                }
+                if (bitmap == null) {
+                    if (size > MAX_FULL_BYTES || !download(spool, size)) {
+                        return null;
+                    }
+                    if (isJpeg(key)) {
+                        orientation = new ExifInterface(spool.getPath()).getAttributeInt(
+                                ExifInterface.TAG_ORIENTATION,
+                                ExifInterface.ORIENTATION_UNDEFINED);
+                    }
+                    bitmap = decodeSampled(null, spool);
+                }
+                if (bitmap == null || cancelled) {
+                    return null;
+                }
+                bitmap = crop(bitmap, orientation);
+
+                try (FileOutputStream os = new FileOutputStream(spool)) {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os);
+                }
+                diskCache.commit(spool, id);
+                return bitmap;
+            } finally {
+                spool.delete();
+            }
+        }
+
+        /**
+         * Download the first length bytes of the object into file.
+         *
+         * @return false if cancelled, too large or client-side encoded
+         */
+        private boolean download(File file, long length) throws IOException {
+            GetObjectRequest request = new GetObjectRequest(bucketName, key);
+            if (length < size) {
+                request.setRange(0, length - 1);
+            }
+            long start = System.nanoTime();
+            S3Object object = client.getObject(request);
+            if (object == null) {
+                return false;
+            }
+            Metrics.time(Metrics.FIRST_BYTE, start);
+            stream = object.getObjectContent();
+            if (ObjectTransform.isTransformed(object.getObjectMetadata())) {
+                // neither EXIF nor bitmap can be read from a client-side encoded prefix; its
+                // response headers carry the same metadata as a HEAD, so stop before the body
+                Log.d(TAG, "No thumbnail for encoded object: " + key);
+                stream.abort();
+                stream = null;
+                return false;
+            }
+            long contentLength = object.getObjectMetadata().getContentLength();
+            if (contentLength > length) {
+                // range ignored; settle for the whole object if it is small enough
+                length = contentLength;
+            }
+            if (cancelled || length > MAX_FULL_BYTES) {
+                stream.abort();
+                stream = null;
+                return false;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(0);
+                TransferEngine.copy(stream, raf.getChannel(), 0, length,
+                        new TransferEngine.Callback() {
+                            @Override
+                            public void onWritten(long position, int count) {
+                            }
+
+                            @Override
+                            public boolean isCancelled() {
+                                return cancelled;
+                            }
+                        });
+            } finally {
+                stream.close();
+                stream = null;
+            }
+            if (!cancelled) {
+                Metrics.transfer(Metrics.GET, start, length);
+            }
+            return !cancelled;
+        }
+    }
+
+    /** Decode data or file with the largest power of two subsampling that still covers sizePx. */
+    private Bitmap decodeSampled(byte[] data, File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(data, file, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= sizePx) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return decode(data, file, options);
+    }
+
+    private static Bitmap decode(byte[] data, File file, BitmapFactory.Options options) {
+        if (data != null) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /** Center crop bitmap to a square of sizePx and apply the EXIF orientation. */
+    private Bitmap crop(Bitmap bitmap, int orientation) {
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, sizePx, sizePx,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        int degrees;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                degrees = 90;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                degrees = 180;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                degrees = 270;
+                break;
+            default:
+                return thumbnail;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        Bitmap rotated = Bitmap.createBitmap(thumbnail, 0, 0, thumbnail.getWidth(),
+                thumbnail.getHeight(), matrix, true);
+        if (rotated != thumbnail) {
+            thumbnail.recycle();
+        }
+        return rotated;
+    }
+
+    private static boolean isJpeg(String key) {
+        String lower = key.toLowerCase(Locale.US);
+        return lower.endsWith(".jpg") || lower.endsWith(".jpeg");
+    }
+}
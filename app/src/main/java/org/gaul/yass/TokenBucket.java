@@ -0,0 +1,86 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the aggregate rate of several upload streams.  Each read takes tokens for the bytes
+ * it returned; when the bucket runs dry the reader sleeps until the debt is repaid at the
+ * configured rate.  Bursts are bounded by the capacity so an idle period does not allow a
+ * long burst afterwards.  The bucket also counts every byte which passed through it.
+ */
+final class TokenBucket {
+    /** Smallest burst, so that slow rates still allow one full read buffer. */
+    private static final long MIN_CAPACITY = 64 * 1024;
+
+    private final long bytesPerSecond;
+    private final long capacity;
+    private long tokens;
+    private long lastRefillNanos;
+    private long acquired;
+
+    /** @param bytesPerSecond rate limit, or 0 for unlimited */
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.capacity = Math.max(MIN_CAPACITY, bytesPerSecond / 4);
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /** Take bytes tokens, sleeping if the rate has been exceeded. */
+    void acquire(int bytes) throws InterruptedIOException {
+        long sleepNanos;
+        synchronized (this) {
+            acquired += bytes;
+            if (bytesPerSecond == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            long elapsed = now - lastRefillNanos;
+            // clamped before multiplying, which would overflow after a long idle period
+            long fillNanos = (capacity - tokens) * 1000000000L / bytesPerSecond;
+            if (elapsed >= fillNanos) {
+                tokens = capacity;
+                lastRefillNanos = now;
+            } else {
+                long refill = elapsed * bytesPerSecond / 1000000000L;
+                tokens += refill;
+                // carry the fraction of a token over so that frequent small reads still refill
+                lastRefillNanos += refill * 1000000000L / bytesPerSecond;
+            }
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return;
+            }
+            // Other readers see the debt and wait behind this one.
+            sleepNanos = -tokens * 1000000000L / bytesPerSecond;
+        }
+        try {
+            Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling");
+        }
+    }
+
+    /** Return the bytes acquired since the last call. */
+    synchronized long takeAcquired() {
+        long result = acquired;
+        acquired = 0;
+        return result;
+    }
+}
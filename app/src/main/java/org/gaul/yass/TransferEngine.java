@@ -0,0 +1,145 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Copies network streams into files.  Reads accumulate in a pooled direct buffer sized for the
+ * transfer and each full buffer is written with a single positional FileChannel write, instead
+ * of one write and one progress callback per small heap buffer.
+ */
+final class TransferEngine {
+    static final int SMALL_BUFFER_SIZE = 64 * 1024;
+    static final int LARGE_BUFFER_SIZE = 512 * 1024;
+    /** Transfers shorter than this use small buffers. */
+    private static final long LARGE_TRANSFER = 4 * 1024 * 1024;
+    private static final int MAX_POOLED = 8;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> smallBuffers =
+            new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<ByteBuffer> largeBuffers =
+            new ConcurrentLinkedQueue<>();
+
+    private TransferEngine() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    interface Callback {
+        /** Called after each write with the new file position. */
+        void onWritten(long position, int count);
+
+        /**
+         * Checked before every read, so that a cancelled copy stops within one read rather than
+         * after filling a whole buffer.
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * Copy in to out starting at position until in is exhausted or callback cancels the copy.
+     * Bytes read but not yet written when the copy is cancelled are dropped.
+     *
+     * @param end offset which the copy must not write past
+     * @return the file position after the last write
+     * @throws IOException if in contains more than end - position bytes
+     */
+    static long copy(InputStream in, FileChannel out, long position, long end,
+            Callback callback) throws IOException {
+        ByteBuffer buffer = acquire(end - position);
+        try {
+            ReadableByteChannel channel = Channels.newChannel(in);
+            boolean eof = false;
+            while (!eof) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (callback.isCancelled()) {
+                        return position;
+                    }
+                    if (channel.read(buffer) == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                int count = buffer.remaining();
+                if (count == 0) {
+                    break;
+                }
+                if (position + count > end) {
+                    throw new IOException("Received more than " + end + " bytes");
+                }
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                callback.onWritten(position, count);
+            }
+            return position;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private static ByteBuffer acquire(long length) {
+        boolean large = length >= LARGE_TRANSFER;
+        ByteBuffer buffer = (large ? largeBuffers : smallBuffers).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(large ? LARGE_BUFFER_SIZE : SMALL_BUFFER_SIZE);
+        }
+        return buffer;
+    }
+
+    private static void release(ByteBuffer buffer) {
+        ConcurrentLinkedQueue<ByteBuffer> pool = buffer.capacity() == LARGE_BUFFER_SIZE ?
+                largeBuffers : smallBuffers;
+        // size() is linear but the pools are tiny
+        if (pool.size() < MAX_POOLED) {
+            pool.offer(buffer);
+        }
+    }
+
+    /**
+     * Limits progress updates to one per percent or per interval, whichever comes later, so that
+     * large transfers do not flood the UI thread.  Safe to call from several workers.
+     */
+    static final class ProgressThrottle {
+        private static final long INTERVAL_MILLIS = 100;
+
+        private final long step;
+        private long lastBytes = Long.MIN_VALUE / 2;
+        private long lastMillis;
+
+        ProgressThrottle(long contentLength) {
+            this.step = Math.max(1, contentLength / 100);
+        }
+
+        synchronized boolean shouldReport(long bytes, boolean last) {
+            long now = System.currentTimeMillis();
+            if (!last && (bytes - lastBytes < step || now - lastMillis < INTERVAL_MILLIS)) {
+                return false;
+            }
+            lastBytes = bytes;
+            lastMillis = now;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import com.amazonaws.AmazonServiceException;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * One drain of an upload queue, shared by its workers.  Each worker leases one item at a time
+ * and uploads it, so a slow upload holds back only its own worker, until no item is leasable.
+ * Items going to a target whose {@link CircuitBreaker} is open are left in the queue, and a
+ * half-open breaker lets one upload at a time probe its target.  It uses no Android APIs;
+ * {@link UploadScheduler} supplies the queue and the uploads.
+ *
+ * @param <T> queued item
+ */
+final class UploadDrain<T> implements Callable<Void> {
+    interface Queue<T> {
+        /** @return a leased item whose target is not in excluded, or null if none */
+        T lease(List<String> excluded);
+
+        /** Return item to the queue without counting an attempt. */
+        void release(T item);
+
+        /** Name of the target item uploads to. */
+        String target(T item);
+
+        /** Whether the drain should lease no more items. */
+        boolean isStopped();
+    }
+
+    interface Uploader<T> {
+        /** @return the breaker of target, or null if target does not exist */
+        CircuitBreaker breaker(String target);
+
+        /** Give up on item, whose target does not exist. */
+        void reject(T item);
+
+        /** Upload item, handling any failure, which affects item only. */
+        void upload(T item);
+    }
+
+    private final Queue<T> queue;
+    private final Uploader<T> uploader;
+    /** Breakers of the targets leased items go to, by target name. */
+    private final Map<String, CircuitBreaker> breakers = new HashMap<>();
+    /** Targets whose half-open breaker has a probe in flight. */
+    private final Set<String> probing = new HashSet<>();
+    private boolean probed;
+    private volatile boolean interrupted;
+
+    UploadDrain(Queue<T> queue, Uploader<T> uploader) {
+        this.queue = queue;
+        this.uploader = uploader;
+    }
+
+    /**
+     * Drain the queue on concurrency workers from executor.  A probe which finishes may have
+     * closed its breaker, so the workers start over to lease the items skipped meanwhile.
+     *
+     * @return true once no item is leasable, false if the queue stopped the drain or the
+     *         caller was interrupted, in which case workers finish their current upload first
+     * @throws ExecutionException if a worker failed
+     */
+    boolean run(ExecutorService executor, int concurrency) throws ExecutionException {
+        while (!isStopped()) {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < concurrency; ++i) {
+                futures.add(executor.submit(this));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    // workers finish their current upload and lease no more
+                    interrupted = true;
+                    return false;
+                }
+            }
+            if (!takeProbed()) {
+                // a stop during this round may have left items leasable
+                return !isStopped();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Void call() {
+        while (!isStopped()) {
+            T item = next();
+            if (item == null) {
+                return null;
+            }
+            try {
+                uploader.upload(item);
+            } finally {
+                finished(item);
+            }
+        }
+        return null;
+    }
+
+    private boolean isStopped() {
+        return interrupted || queue.isStopped();
+    }
+
+    /** Lease the next item whose target accepts requests, or return null if none. */
+    private synchronized T next() {
+        while (!isStopped()) {
+            long now = System.currentTimeMillis();
+            List<String> excluded = new ArrayList<>();
+            for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+                if (!entry.getValue().allowRequest(now) || probing.contains(entry.getKey())) {
+                    excluded.add(entry.getKey());
+                }
+            }
+            T item = queue.lease(excluded);
+            if (item == null) {
+                return null;
+            }
+            String target = queue.target(item);
+            CircuitBreaker breaker = breakers.get(target);
+            if (breaker == null) {
+                breaker = uploader.breaker(target);
+                if (breaker == null) {
+                    uploader.reject(item);
+                    continue;
+                }
+                breakers.put(target, breaker);
+            }
+            if (!breaker.allowRequest(now)) {
+                // first item for this target; the next lease excludes it
+                queue.release(item);
+                continue;
+            }
+            if (breaker.state() == CircuitBreaker.HALF_OPEN) {
+                probing.add(target);
+            }
+            return item;
+        }
+        return null;
+    }
+
+    private synchronized void finished(T item) {
+        if (probing.remove(queue.target(item))) {
+            probed = true;
+        }
+    }
+
+    /** Whether a probe finished since the last call. */
+    private synchronized boolean takeProbed() {
+        boolean result = probed;
+        probed = false;
+        return result;
+    }
+
+    /**
+     * Whether e says nothing about the item itself: the endpoint could not be reached, failed
+     * with a server error or is throttling, all of which would fail every other item too.
+     * Anything else, including local I/O errors such as failing to read the file, is the item's.
+     */
+    static boolean isEndpointFailure(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException) e).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        // the SDK wraps transport errors and errors reading the request body alike
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof SocketTimeoutException ||
+                    cause instanceof UnknownHostException || cause instanceof SSLException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether e rejects the profile's credentials.  The item still backs off, since a 403 can
+     * also come from a policy on its key alone.
+     */
+    static boolean isAuthFailure(Exception e) {
+        if (!(e instanceof AmazonServiceException)) {
+            return false;
+        }
+        int status = ((AmazonServiceException) e).getStatusCode();
+        return status == 401 || status == 403;
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Index of camera files already uploaded to each target profile, identified by URI, size and
+ * modification time.  It is
+ * consulted before enqueueing and before uploading so that duplicate intents and retries do not
+ * send the same bytes again.  The md5 column holds the ETag the upload produced: the MD5 of
+ * single-part uploads or the MD5 of part MD5s and part count of multipart uploads.
+ */
+final class UploadIndex {
+    private static UploadIndex instance;
+
+    private final SQLiteOpenHelper helper;
+
+    private UploadIndex(SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    static synchronized UploadIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new UploadIndex(YassDbHelper.getInstance(context));
+        }
+        return instance;
+    }
+
+    boolean isUploaded(String target, Uri uri, long fileSize, long fileMtime) {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        Cursor cursor = db.query("uploaded_files", new String[] {"file_size", "file_mtime"},
+                "file_uri = ? AND target = ?", new String[] {uri.toString(), target}, null,
+                null, null);
+        try {
+            return cursor.moveToNext() && cursor.getLong(0) == fileSize &&
+                    cursor.getLong(1) == fileMtime;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    void put(String target, Uri uri, long fileSize, long fileMtime, String md5,
+            String objectKey) {
+        ContentValues values = new ContentValues();
+        values.put("file_uri", uri.toString());
+        values.put("target", target);
+        values.put("file_size", fileSize);
+        values.put("file_mtime", fileMtime);
+        values.put("md5", md5);
+        values.put("object_key", objectKey);
+        values.put("uploaded_at", System.currentTimeMillis());
+        helper.getWritableDatabase().insertWithOnConflict("uploaded_files", null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /** Modification time in seconds, or 0 if the provider does not report one. */
+    static long queryMtime(ContentResolver resolver, Uri uri) {
+        Cursor cursor = resolver.query(uri, new String[] {MediaStore.MediaColumns.DATE_MODIFIED},
+                null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } catch (IllegalArgumentException iae) {
+            return 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * ETag that uploading the stream would produce: its MD5 for a single-part upload, or for a
+     * multipart upload the MD5 of the concatenated part MD5s followed by the part count.
+     * Both are computed in one pass so either form of an existing ETag can be compared.
+     */
+    static String[] expectedETags(InputStream is, long partSize) throws IOException {
+        MessageDigest whole = HashingInputStream.newMd5();
+        MessageDigest part = HashingInputStream.newMd5();
+        MessageDigest parts = HashingInputStream.newMd5();
+        int numParts = 0;
+        long partRemaining = partSize;
+        byte[] buffer = new byte[64 * 1024];
+        while (true) {
+            int count = is.read(buffer, 0, (int) Math.min(buffer.length, partRemaining));
+            if (count == -1) {
+                break;
+            }
+            whole.update(buffer, 0, count);
+            part.update(buffer, 0, count);
+            partRemaining -= count;
+            if (partRemaining == 0) {
+                parts.update(part.digest());
+                ++numParts;
+                partRemaining = partSize;
+            }
+        }
+        if (partRemaining != partSize || numParts == 0) {
+            parts.update(part.digest());
+            ++numParts;
+        }
+        return new String[] {toHex(whole.digest()), multipartETag(parts.digest(), numParts)};
+    }
+
+    static String multipartETag(byte[] md5OfPartMd5s, int numParts) {
+        return toHex(md5OfPartMd5s) + "-" + numParts;
+    }
+
+    /** Compare an ETag, which may be quoted, with an expected ETag. */
+    static boolean eTagMatches(String eTag, String expected) {
+        if (eTag == null || expected == null) {
+            return false;
+        }
+        if (eTag.startsWith("\"") && eTag.endsWith("\"") && eTag.length() >= 2) {
+            eTag = eTag.substring(1, eTag.length() - 1);
+        }
+        return eTag.equalsIgnoreCase(expected);
+    }
+
+    /** Whether an ETag, which may be quoted, looks like an MD5 rather than an opaque value. */
+    static boolean isMd5ETag(String eTag) {
+        return eTag != null && eTag.replace("\"", "").matches("[0-9a-fA-F]{32}");
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Runs the upload scheduler while the system holds the job, keeping the process alive. */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public final class UploadJobService extends JobService {
+    private static final String TAG = "UploadJobService";
+
+    /** Listener of each running job by job id, so that stopping one job leaves the others. */
+    private final Map<Integer, UploadScheduler.Listener> listeners = new HashMap<>();
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Log.d(TAG, "Starting upload job " + params.getJobId());
+        UploadScheduler.Listener listener = new UploadScheduler.Listener() {
+            @Override
+            public void onDrained(boolean success) {
+                Log.d(TAG, "Finished upload job " + params.getJobId() + ": " + success);
+                synchronized (listeners) {
+                    listeners.remove(params.getJobId());
+                }
+                jobFinished(params, !success);
+            }
+        };
+        synchronized (listeners) {
+            listeners.put(params.getJobId(), listener);
+        }
+        UploadScheduler.getInstance(this).drain(listener);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "Stopping upload job " + params.getJobId());
+        UploadScheduler.Listener listener;
+        synchronized (listeners) {
+            listener = listeners.remove(params.getJobId());
+        }
+        if (listener != null) {
+            UploadScheduler.getInstance(this).stop(listener);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Schedules draining of the camera upload queue.  On Lollipop and newer a persisted job runs
+ * once the required network is available and is retried with exponential backoff when uploads
+ * fail.  Uploads deferred by {@link UploadPolicy} get their own jobs which wait for an
+ * unmetered network or the charger, and uploads waiting for their backoff or for the endpoint's
+ * circuit breaker get a job delayed until then.  Older releases drain immediately and rely on
+ * connectivity and power broadcasts to retry.
+ */
+final class UploadJobs {
+    private static final String TAG = "UploadJobs";
+    private static final int JOB_ID = 1;
+    private static final int UNMETERED_JOB_ID = 2;
+    private static final int CHARGING_JOB_ID = 3;
+    private static final int RETRY_JOB_ID = 5;
+    private static final long INITIAL_BACKOFF_MILLIS = 30 * 1000;
+
+    private UploadJobs() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /** Drain the queue as soon as the network allows. */
+    static void schedule(Context context) {
+        if (!isSupported()) {
+            UploadScheduler.getInstance(context).drain();
+            return;
+        }
+        // a drain in progress picks up the new rows itself
+        UploadScheduler.getInstance(context).rescan();
+        scheduleJob(context);
+    }
+
+    /** Drain again once the conditions deferred uploads wait for are met. */
+    static void scheduleDeferred(Context context, boolean unmetered, boolean charging) {
+        if (!isSupported()) {
+            // YassBroadcastReceiver drains on connectivity and power changes
+            return;
+        }
+        MainActivity.YassPreferences preferences = new MainActivity.YassPreferences(context);
+        if (unmetered) {
+            scheduleJob(context, UNMETERED_JOB_ID, JobInfo.NETWORK_TYPE_UNMETERED, false);
+        }
+        if (charging) {
+            scheduleJob(context, CHARGING_JOB_ID, preferences.cameraUploadOnlyOnWifi ?
+                    JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY, true);
+        }
+    }
+
+    /** Drain again at atMillis, replacing any earlier retry. */
+    static void scheduleRetry(Context context, long atMillis) {
+        if (!isSupported()) {
+            // YassBroadcastReceiver drains on connectivity changes; due rows upload then
+            return;
+        }
+        MainActivity.YassPreferences preferences = new MainActivity.YassPreferences(context);
+        if (!preferences.cameraUpload) {
+            return;
+        }
+        scheduleJob(context, RETRY_JOB_ID, preferences.cameraUploadOnlyOnWifi ?
+                JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY, false,
+                Math.max(0, atMillis - System.currentTimeMillis()));
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        MainActivity.YassPreferences preferences = new MainActivity.YassPreferences(context);
+        if (!preferences.cameraUpload) {
+            return;
+        }
+        scheduleJob(context, JOB_ID, preferences.cameraUploadOnlyOnWifi ?
+                JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY, false);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context, int jobId, int networkType,
+            boolean requiresCharging) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo pending : scheduler.getAllPendingJobs()) {
+            if (pending.getId() == jobId && pending.getNetworkType() == networkType &&
+                    pending.isRequireCharging() == requiresCharging) {
+                // rescheduling would stop the job if it is running
+                return;
+            }
+        }
+        scheduleJob(context, jobId, networkType, requiresCharging, 0);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context, int jobId, int networkType,
+            boolean requiresCharging, long minimumLatencyMillis) {
+        JobInfo job = new JobInfo.Builder(jobId,
+                new ComponentName(context, UploadJobService.class))
+                .setRequiredNetworkType(networkType)
+                .setRequiresCharging(requiresCharging)
+                .setMinimumLatency(minimumLatencyMillis)
+                .setBackoffCriteria(INITIAL_BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setPersisted(true)
+                .build();
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule upload job");
+        }
+    }
+}
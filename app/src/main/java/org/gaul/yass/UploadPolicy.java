@@ -0,0 +1,93 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+
+/**
+ * Upload limits for the current network.  Networks are classified as metered or unmetered, as
+ * the platform reports them, instead of by Wifi or mobile type so that metered Wifi hotspots get
+ * the cellular limits.  Each class has its own concurrency and bandwidth cap; metered networks
+ * also draw on a monthly data budget.  Large videos may additionally wait for the charger.
+ */
+final class UploadPolicy {
+    /** Whether uploads may use the current network at all. */
+    final boolean allowed;
+    final boolean metered;
+    final int concurrency;
+    /** Aggregate upload rate, or 0 for unlimited. */
+    final long bytesPerSecond;
+    /** Bytes left in this month's metered budget, or Long.MAX_VALUE if unlimited. */
+    final long meteredBytesRemaining;
+    private final boolean charging;
+    /** Videos at least this large wait for the charger. */
+    private final long largeVideoSize;
+
+    private UploadPolicy(boolean allowed, boolean metered, int concurrency,
+            long bytesPerSecond, long meteredBytesRemaining, boolean charging,
+            long largeVideoSize) {
+        this.allowed = allowed;
+        this.metered = metered;
+        this.concurrency = concurrency;
+        this.bytesPerSecond = bytesPerSecond;
+        this.meteredBytesRemaining = meteredBytesRemaining;
+        this.charging = charging;
+        this.largeVideoSize = largeVideoSize;
+    }
+
+    static UploadPolicy current(Context context, MainActivity.YassPreferences preferences) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        boolean charging = isCharging(context);
+        long largeVideoSize = preferences.chargingOnlyLargeVideos ?
+                preferences.largeVideoSize : Long.MAX_VALUE;
+        if (activeNetwork == null || !activeNetwork.isConnectedOrConnecting()) {
+            return new UploadPolicy(false, false, 0, 0, 0, charging, largeVideoSize);
+        }
+        if (!cm.isActiveNetworkMetered()) {
+            return new UploadPolicy(true, false, preferences.uploadConcurrency,
+                    preferences.uploadRateUnmetered, Long.MAX_VALUE, charging, largeVideoSize);
+        }
+        if (preferences.cameraUploadOnlyOnWifi) {
+            return new UploadPolicy(false, true, 0, 0, 0, charging, largeVideoSize);
+        }
+        long remaining = Long.MAX_VALUE;
+        if (preferences.meteredMonthlyBudget > 0) {
+            long used = MeteredUsage.getInstance(context).thisMonth();
+            remaining = Math.max(0, preferences.meteredMonthlyBudget - used);
+        }
+        return new UploadPolicy(true, true, preferences.uploadConcurrencyMetered,
+                preferences.uploadRateMetered, remaining, charging, largeVideoSize);
+    }
+
+    private static boolean isCharging(Context context) {
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /** Whether a file must wait for the charger under the large video preference. */
+    boolean mustWaitForCharger(String contentType, long fileSize) {
+        return !charging && contentType != null && contentType.startsWith("video/") &&
+                fileSize >= largeVideoSize;
+    }
+}
@@ -0,0 +1,355 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Queue of pending camera uploads.  Workers lease rows before uploading them so that a row is
+ * never handed to two workers; a lease expires if its holder dies without releasing it.  A
+ * failed row waits with exponential backoff before it can be leased again and is dead-lettered
+ * after MAX_ATTEMPTS, so one bad file never blocks the rows behind it.  Failures of the endpoint
+ * back a row off too but count against the larger MAX_ENDPOINT_FAILURES, so that an outage does
+ * not dead-letter the queue while a row the endpoint always rejects still gives up eventually.
+ * The statements on the upload path are compiled once and guarded by this object's lock.
+ */
+final class UploadQueue {
+    static final int MAX_ATTEMPTS = 8;
+    static final int MAX_ENDPOINT_FAILURES = 24;
+    private static final long MIN_BACKOFF_MILLIS = 30 * 1000;
+    private static final long MAX_BACKOFF_MILLIS = 6 * 60 * 60 * 1000;
+
+    private static UploadQueue instance;
+
+    private final SQLiteOpenHelper helper;
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement queuedStatement;
+    private SQLiteStatement reviveStatement;
+    private SQLiteStatement leaseStatement;
+    private SQLiteStatement releaseStatement;
+    private SQLiteStatement deleteStatement;
+    private SQLiteStatement deletePartsStatement;
+    private SQLiteStatement failStatement;
+    private SQLiteStatement failEndpointStatement;
+    private final Random random = new Random();
+
+    private UploadQueue(SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    static synchronized UploadQueue getInstance(Context context) {
+        if (instance == null) {
+            instance = new UploadQueue(YassDbHelper.getInstance(context));
+        }
+        return instance;
+    }
+
+    static final class Item {
+        final long serial;
+        final Uri uri;
+        final String fileName;
+        /** Name of the profile to upload to. */
+        final String target;
+
+        Item(long serial, Uri uri, String fileName, String target) {
+            this.serial = serial;
+            this.uri = uri;
+            this.fileName = fileName;
+            this.target = target;
+        }
+    }
+
+    /** Dead-lettered item with the error of its last attempt. */
+    static final class DeadItem {
+        final long serial;
+        final String fileName;
+        final int attempts;
+        final String lastError;
+
+        DeadItem(long serial, String fileName, int attempts, String lastError) {
+            this.serial = serial;
+            this.fileName = fileName;
+            this.attempts = attempts;
+            this.lastError = lastError;
+        }
+    }
+
+    static final class NewItem {
+        final Uri uri;
+        final String fileName;
+        final long fileSize;
+        final String target;
+
+        NewItem(Uri uri, String fileName, long fileSize, String target) {
+            this.uri = uri;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.target = target;
+        }
+    }
+
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        if (insertStatement == null) {
+            insertStatement = db.compileStatement("INSERT INTO camera_uploads" +
+                    " (file_uri, file_name, file_size, enqueued_at, target)" +
+                    " VALUES (?, ?, ?, ?, ?)");
+            queuedStatement = db.compileStatement("SELECT COUNT(*) FROM camera_uploads" +
+                    " WHERE file_uri = ? AND target = ? AND dead = 0");
+            reviveStatement = db.compileStatement("UPDATE camera_uploads SET attempts = 0" +
+                    ", endpoint_failures = 0, next_attempt = 0, dead = 0, last_error = NULL" +
+                    " WHERE file_uri = ? AND target = ? AND dead = 1");
+            leaseStatement = db.compileStatement(
+                    "UPDATE camera_uploads SET leased_until = ? WHERE serial = ?");
+            releaseStatement = db.compileStatement(
+                    "UPDATE camera_uploads SET leased_until = 0 WHERE serial = ?");
+            deleteStatement = db.compileStatement("DELETE FROM camera_uploads WHERE serial = ?");
+            deletePartsStatement = db.compileStatement(
+                    "DELETE FROM camera_upload_parts WHERE serial = ?");
+            failStatement = db.compileStatement("UPDATE camera_uploads SET leased_until = 0" +
+                    ", attempts = ?, next_attempt = ?, dead = ?, last_error = ? WHERE serial = ?");
+            failEndpointStatement = db.compileStatement("UPDATE camera_uploads" +
+                    " SET leased_until = 0, endpoint_failures = ?, next_attempt = ?, dead = ?" +
+                    ", last_error = ? WHERE serial = ?");
+        }
+        return db;
+    }
+
+    /**
+     * Insert all items not already queued in a single transaction.  A dead-lettered item for
+     * the same file gets a fresh set of attempts instead, keeping any parts it already sent,
+     * since the new intent may follow whatever made it fail, e.g., a restored permission.
+     */
+    synchronized void enqueue(List<NewItem> items) {
+        SQLiteDatabase db = getDatabase();
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            for (NewItem item : items) {
+                reviveStatement.bindString(1, item.uri.toString());
+                reviveStatement.bindString(2, item.target);
+                if (reviveStatement.executeUpdateDelete() > 0) {
+                    continue;
+                }
+                queuedStatement.bindString(1, item.uri.toString());
+                queuedStatement.bindString(2, item.target);
+                if (queuedStatement.simpleQueryForLong() > 0) {
+                    continue;
+                }
+                insertStatement.bindString(1, item.uri.toString());
+                insertStatement.bindString(2, item.fileName);
+                insertStatement.bindLong(3, item.fileSize);
+                insertStatement.bindLong(4, now);
+                insertStatement.bindString(5, item.target);
+                insertStatement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Lease up to limit of the unleased items which are due for leaseMillis, skipping items for
+     * excludedTargets.  Items which never failed come first, oldest first, so that the probe of a
+     * recovering endpoint does not keep picking the row which failed last.
+     */
+    synchronized List<Item> lease(int limit, long leaseMillis, List<String> excludedTargets) {
+        SQLiteDatabase db = getDatabase();
+        long now = System.currentTimeMillis();
+        List<Item> items = new ArrayList<>();
+        db.beginTransaction();
+        try {
+            String[] projection = {
+                    "serial",
+                    "file_uri",
+                    "file_name",
+                    "target"
+            };
+            StringBuilder selection = new StringBuilder(
+                    "leased_until < ? AND next_attempt <= ? AND dead = 0");
+            List<String> args = new ArrayList<>();
+            args.add(String.valueOf(now));
+            args.add(String.valueOf(now));
+            if (!excludedTargets.isEmpty()) {
+                selection.append(" AND target NOT IN (?");
+                for (int i = 1; i < excludedTargets.size(); ++i) {
+                    selection.append(", ?");
+                }
+                selection.append(')');
+                args.addAll(excludedTargets);
+            }
+            Cursor cursor = db.query("camera_uploads", projection, selection.toString(),
+                    args.toArray(new String[args.size()]), null, null,
+                    "next_attempt ASC, serial ASC", String.valueOf(limit));
+            try {
+                while (cursor.moveToNext()) {
+                    items.add(new Item(cursor.getLong(0), Uri.parse(cursor.getString(1)),
+                            cursor.getString(2), cursor.getString(3)));
+                }
+            } finally {
+                cursor.close();
+            }
+            for (Item item : items) {
+                leaseStatement.bindLong(1, now + leaseMillis);
+                leaseStatement.bindLong(2, item.serial);
+                leaseStatement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return items;
+    }
+
+    /** Number of queued items, leased or not, excluding dead-lettered items. */
+    long size() {
+        return DatabaseUtils.queryNumEntries(helper.getReadableDatabase(), "camera_uploads",
+                "dead = 0");
+    }
+
+    /** When the earliest item waiting for a retry becomes due, or 0 if none is waiting. */
+    long nextAttemptAt() {
+        return DatabaseUtils.longForQuery(helper.getReadableDatabase(),
+                "SELECT COALESCE(MIN(next_attempt), 0) FROM camera_uploads" +
+                        " WHERE dead = 0 AND next_attempt > ?",
+                new String[] {String.valueOf(System.currentTimeMillis())});
+    }
+
+    List<DeadItem> deadItems() {
+        List<DeadItem> items = new ArrayList<>();
+        Cursor cursor = helper.getReadableDatabase().query("camera_uploads",
+                new String[] {"serial", "file_name", "attempts", "last_error"}, "dead = 1",
+                null, null, null, "serial ASC");
+        try {
+            while (cursor.moveToNext()) {
+                items.add(new DeadItem(cursor.getLong(0), cursor.getString(1),
+                        cursor.getInt(2), cursor.getString(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return items;
+    }
+
+    /** Give dead-lettered items a fresh set of attempts. */
+    synchronized void retryDead() {
+        getDatabase().execSQL("UPDATE camera_uploads SET attempts = 0, endpoint_failures = 0" +
+                ", next_attempt = 0, dead = 0 WHERE dead = 1");
+    }
+
+    /**
+     * Release a failed item until its backoff expires, or dead-letter it if permanent or out
+     * of attempts.
+     *
+     * @return whether the item was dead-lettered
+     */
+    synchronized boolean fail(long serial, String error, boolean permanent) {
+        SQLiteDatabase db = getDatabase();
+        int attempts = (int) DatabaseUtils.longForQuery(db,
+                "SELECT attempts FROM camera_uploads WHERE serial = ?",
+                new String[] {String.valueOf(serial)}) + 1;
+        boolean dead = permanent || attempts >= MAX_ATTEMPTS;
+        failStatement.bindLong(1, attempts);
+        failStatement.bindLong(2, dead ? 0 : System.currentTimeMillis() + backoffMillis(attempts));
+        failStatement.bindLong(3, dead ? 1 : 0);
+        if (error == null) {
+            failStatement.bindNull(4);
+        } else {
+            failStatement.bindString(4, error);
+        }
+        failStatement.bindLong(5, serial);
+        failStatement.executeUpdateDelete();
+        return dead;
+    }
+
+    /**
+     * Release an item whose upload failed because of the endpoint, such as a 5xx response or a
+     * reset connection, until its backoff expires.  Its attempts stay untouched; it is
+     * dead-lettered only after MAX_ENDPOINT_FAILURES such failures.
+     *
+     * @return whether the item was dead-lettered
+     */
+    synchronized boolean failEndpoint(long serial, String error) {
+        SQLiteDatabase db = getDatabase();
+        int failures = (int) DatabaseUtils.longForQuery(db,
+                "SELECT endpoint_failures FROM camera_uploads WHERE serial = ?",
+                new String[] {String.valueOf(serial)}) + 1;
+        boolean dead = failures >= MAX_ENDPOINT_FAILURES;
+        failEndpointStatement.bindLong(1, failures);
+        failEndpointStatement.bindLong(2,
+                dead ? 0 : System.currentTimeMillis() + backoffMillis(failures));
+        failEndpointStatement.bindLong(3, dead ? 1 : 0);
+        failEndpointStatement.bindString(4, error);
+        failEndpointStatement.bindLong(5, serial);
+        failEndpointStatement.executeUpdateDelete();
+        return dead;
+    }
+
+    /**
+     * Delay before attempt number attempts + 1: doubling from MIN_BACKOFF_MILLIS up to
+     * MAX_BACKOFF_MILLIS, of which a random half is jitter so that rows failed together do not
+     * all retry together.
+     */
+    private long backoffMillis(int attempts) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS,
+                MIN_BACKOFF_MILLIS << Math.min(attempts - 1, 20));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /** When the oldest queued item was enqueued, or 0 if none is known. */
+    long oldestEnqueuedAt() {
+        return DatabaseUtils.longForQuery(helper.getReadableDatabase(),
+                "SELECT COALESCE(MIN(enqueued_at), 0) FROM camera_uploads" +
+                        " WHERE enqueued_at > 0 AND dead = 0",
+                null);
+    }
+
+    synchronized void release(long serial) {
+        getDatabase();
+        releaseStatement.bindLong(1, serial);
+        releaseStatement.executeUpdateDelete();
+    }
+
+    /** Release leases held by a previous process, which cannot still be uploading. */
+    synchronized void releaseAll() {
+        getDatabase().execSQL("UPDATE camera_uploads SET leased_until = 0");
+    }
+
+    synchronized void remove(long serial) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            deleteStatement.bindLong(1, serial);
+            deleteStatement.executeUpdateDelete();
+            deletePartsStatement.bindLong(1, serial);
+            deletePartsStatement.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,608 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains the camera upload queue with a bounded number of concurrent workers, which
+ * {@link UploadDrain} schedules.  There is one
+ * scheduler per process; requests to drain while a drain is running make it look for new rows
+ * once it finishes instead of starting a second one.  {@link UploadJobs} decides when to drain.
+ * Failures the endpoint is responsible for, such as network errors and 5xx responses, feed the
+ * profile's {@link CircuitBreaker} and back off the item against a separate, larger cap than its
+ * attempts; rejected credentials feed the breaker and back off the item; other failures back off
+ * the item only.
+ */
+final class UploadScheduler {
+    private static final String TAG = "UploadScheduler";
+    private static final long LEASE_MILLIS = 6 * 60 * 60 * 1000;
+    /** Number of names to try when different files share a display name. */
+    private static final int MAX_KEY_ATTEMPTS = 100;
+
+    // outcomes of an UploadTask
+    private static final int UPLOADED = 0;
+    private static final int FAILED = 1;
+    private static final int DEFERRED_UNMETERED = 2;
+    private static final int DEFERRED_CHARGING = 3;
+
+    private static UploadScheduler instance;
+
+    private final Context context;
+    private final ThreadPoolExecutor dispatcher = new ThreadPoolExecutor(1, 1, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final List<Listener> listeners = new ArrayList<>();
+    private boolean draining;
+    private boolean rescan;
+    /** Whether a drain was requested without a listener, which no job can stop. */
+    private boolean unowned;
+    private volatile boolean stopped;
+    private boolean leasesRecovered;
+
+    /** Notified once a drain finishes. */
+    interface Listener {
+        /**
+         * @param success whether the drain finished; items waiting for their backoff or for the
+         *                circuit breaker have a retry scheduled already
+         */
+        void onDrained(boolean success);
+    }
+
+    private UploadScheduler(Context context) {
+        this.context = context.getApplicationContext();
+        dispatcher.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized UploadScheduler getInstance(Context context) {
+        if (instance == null) {
+            instance = new UploadScheduler(context);
+        }
+        return instance;
+    }
+
+    /** Upload queued items in the background; returns immediately. */
+    void drain() {
+        drain(null);
+    }
+
+    /** Upload queued items in the background and notify listener when done. */
+    synchronized void drain(Listener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        } else {
+            unowned = true;
+        }
+        rescan = true;
+        stopped = false;
+        if (draining) {
+            return;
+        }
+        draining = true;
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                while (takeRescan(success)) {
+                    success = drainQueue();
+                }
+            }
+        });
+    }
+
+    /** Make a drain in progress look for new rows before it finishes. */
+    synchronized void rescan() {
+        if (draining) {
+            rescan = true;
+        }
+    }
+
+    /**
+     * Withdraw the drain request of owner, which is not notified any more.  The drain stops
+     * leasing new items only if no other listener or request without a listener still needs
+     * it; uploads in progress complete.
+     */
+    synchronized void stop(Listener owner) {
+        listeners.remove(owner);
+        if (listeners.isEmpty() && !unowned) {
+            stopped = true;
+        }
+    }
+
+    private boolean takeRescan(boolean success) {
+        List<Listener> finished;
+        synchronized (this) {
+            if (rescan && !stopped) {
+                rescan = false;
+                return true;
+            }
+            finished = new ArrayList<>(listeners);
+            listeners.clear();
+            unowned = false;
+        }
+        for (Listener listener : finished) {
+            listener.onDrained(success && !stopped);
+        }
+        synchronized (this) {
+            // rows enqueued while the listeners finished their jobs
+            if (rescan && !stopped) {
+                rescan = false;
+                return true;
+            }
+            draining = false;
+            return false;
+        }
+    }
+
+    /** @return false if the drain should be retried with the job's backoff */
+    private boolean drainQueue() {
+        MainActivity.YassPreferences preferences = new MainActivity.YassPreferences(context);
+        UploadPolicy policy = UploadPolicy.current(context, preferences);
+        if (!policy.allowed) {
+            Log.d(TAG, "Skipping camera upload because the network is disconnected or metered");
+            return false;
+        }
+
+        YassDbHelper dbHelper = YassDbHelper.getInstance(context);
+        UploadQueue queue = UploadQueue.getInstance(context);
+        if (!leasesRecovered) {
+            queue.releaseAll();
+            leasesRecovered = true;
+        }
+        Metrics.sample(Metrics.QUEUE_DEPTH, queue.size());
+        long oldest = queue.oldestEnqueuedAt();
+        if (oldest != 0) {
+            Metrics.sample(Metrics.QUEUE_AGE,
+                    TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - oldest));
+        }
+        int concurrency = policy.concurrency;
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        Drain drain = new Drain(preferences, policy, queue, dbHelper);
+        try {
+            if (!new UploadDrain<>(drain, drain).run(workers, concurrency)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    stopped = true;
+                }
+                return false;
+            }
+            Log.d(TAG, "Did not find image to upload");
+            if (queue.size() == 0) {
+                // no remaining upload can resume from a spool
+                ObjectTransform.clearSpool(spoolDirectory());
+            }
+            return true;
+        } catch (ExecutionException ee) {
+            Log.e(TAG, "Upload worker failed: " + ee.getCause());
+            return false;
+        } finally {
+            workers.shutdown();
+            drain.finish();
+            // the process may be killed once the job finishes
+            Metrics.flush(context);
+        }
+    }
+
+    /** Rows, profiles and uploads of one drain, shared by its workers. */
+    private final class Drain implements UploadDrain.Queue<UploadQueue.Item>,
+            UploadDrain.Uploader<UploadQueue.Item> {
+        private final MainActivity.YassPreferences preferences;
+        private final UploadPolicy policy;
+        private final UploadQueue queue;
+        private final YassDbHelper dbHelper;
+        // one bucket so that the cap applies to all concurrent uploads together
+        private final TokenBucket bucket;
+        private final AtomicLong meteredBytesRemaining;
+        private final char[] passphrase;
+        /** Clients and breakers of the profiles leased items go to, by profile name. */
+        private final Map<String, Target> targets = new HashMap<>();
+        /** Deferred items stay leased until the drain ends so that it does not lease them again. */
+        private final List<Long> deferred = new ArrayList<>();
+        private boolean deferredUnmetered;
+        private boolean deferredCharging;
+
+        Drain(MainActivity.YassPreferences preferences, UploadPolicy policy, UploadQueue queue,
+                YassDbHelper dbHelper) {
+            this.preferences = preferences;
+            this.policy = policy;
+            this.queue = queue;
+            this.dbHelper = dbHelper;
+            this.bucket = new TokenBucket(policy.bytesPerSecond);
+            this.meteredBytesRemaining = new AtomicLong(policy.meteredBytesRemaining);
+            this.passphrase = ObjectTransform.passphrase(preferences);
+        }
+
+        @Override
+        public UploadQueue.Item lease(List<String> excluded) {
+            List<UploadQueue.Item> items = queue.lease(1, LEASE_MILLIS, excluded);
+            return items.isEmpty() ? null : items.get(0);
+        }
+
+        @Override
+        public void release(UploadQueue.Item item) {
+            Log.d(TAG, "Pausing uploads to " + item.target + " while its endpoint is failing");
+            queue.release(item.serial);
+        }
+
+        @Override
+        public String target(UploadQueue.Item item) {
+            return item.target;
+        }
+
+        @Override
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        @Override
+        public CircuitBreaker breaker(String name) {
+            Target target = target(name);
+            return target == null ? null : target.breaker;
+        }
+
+        @Override
+        public void reject(UploadQueue.Item item) {
+            queue.fail(item.serial, "No such profile: " + item.target, true);
+            Metrics.count(Metrics.DEAD_LETTER);
+        }
+
+        @Override
+        public void upload(UploadQueue.Item item) {
+            UploadTask task = new UploadTask(target(item.target), queue, policy, bucket,
+                    meteredBytesRemaining, preferences.uploadCompress, passphrase, item);
+            int outcome;
+            try {
+                outcome = task.call();
+            } catch (RuntimeException re) {
+                // affects this item only; the worker moves on to the next one
+                Log.e(TAG, "Could not upload file: " + item.fileName, re);
+                Metrics.count(Metrics.UPLOAD_FAILURE);
+                queue.fail(item.serial, re.toString(), false);
+                outcome = FAILED;
+            }
+            // failed items wait for their own backoff instead of ending the drain
+            if (outcome == DEFERRED_UNMETERED || outcome == DEFERRED_CHARGING) {
+                synchronized (this) {
+                    deferred.add(item.serial);
+                    deferredUnmetered |= outcome == DEFERRED_UNMETERED;
+                    deferredCharging |= outcome == DEFERRED_CHARGING;
+                }
+            }
+        }
+
+        private synchronized Target target(String name) {
+            Target target = targets.get(name);
+            if (target == null) {
+                Profile profile = Profile.load(context, name);
+                if (profile == null) {
+                    return null;
+                }
+                AmazonS3 client = S3ClientProvider.getClient(preferences, profile);
+                target = new Target(profile, client, new MultipartUploader(client,
+                        context.getContentResolver(), dbHelper, policy.concurrency, bucket));
+                targets.put(name, target);
+            }
+            return target;
+        }
+
+        /** Release deferred rows and schedule the jobs which retry them and failed rows. */
+        synchronized void finish() {
+            for (long serial : deferred) {
+                queue.release(serial);
+            }
+            if (deferredUnmetered || deferredCharging) {
+                UploadJobs.scheduleDeferred(context, deferredUnmetered, deferredCharging);
+            }
+            long retryAt = queue.nextAttemptAt();
+            for (Target target : targets.values()) {
+                long openUntil = target.breaker.openUntil();
+                if (openUntil != 0 && (retryAt == 0 || openUntil < retryAt)) {
+                    retryAt = openUntil;
+                }
+            }
+            if (retryAt != 0) {
+                UploadJobs.scheduleRetry(context, retryAt);
+            }
+        }
+    }
+
+    /** Encoded uploads waiting to be sent, kept until the upload completes. */
+    private File spoolDirectory() {
+        return new File(context.getCacheDir(), "spool");
+    }
+
+    /** Profile which items upload to with its client and its breaker. */
+    private static final class Target {
+        final Profile profile;
+        final AmazonS3 client;
+        final MultipartUploader multipartUploader;
+        final CircuitBreaker breaker;
+
+        Target(Profile profile, AmazonS3 client, MultipartUploader multipartUploader) {
+            this.profile = profile;
+            this.client = client;
+            this.multipartUploader = multipartUploader;
+            this.breaker = CircuitBreaker.forCredentials(profile.endpoint, profile.accessKey,
+                    profile.secretKey);
+        }
+    }
+
+    private final class UploadTask implements Callable<Integer> {
+        private final AmazonS3 client;
+        private final MultipartUploader multipartUploader;
+        private final UploadQueue queue;
+        private final String bucketName;
+        private final UploadPolicy policy;
+        private final TokenBucket bucket;
+        private final AtomicLong meteredBytesRemaining;
+        private final boolean compress;
+        private final char[] passphrase;
+        private final CircuitBreaker breaker;
+        private final UploadQueue.Item item;
+
+        UploadTask(Target target, UploadQueue queue, UploadPolicy policy, TokenBucket bucket,
+                AtomicLong meteredBytesRemaining, boolean compress, char[] passphrase,
+                UploadQueue.Item item) {
+            this.client = target.client;
+            this.multipartUploader = target.multipartUploader;
+            this.queue = queue;
+            this.bucketName = target.profile.bucketName;
+            this.policy = policy;
+            this.bucket = bucket;
+            this.meteredBytesRemaining = meteredBytesRemaining;
+            this.compress = compress;
+            this.passphrase = passphrase;
+            this.breaker = target.breaker;
+            this.item = item;
+        }
+
+        @Override
+        public Integer call() {
+            int outcome;
+            try {
+                outcome = upload();
+            } catch (AmazonClientException | IOException | SecurityException e) {
+                Log.e(TAG, "Could not upload file: " + item.fileName + " " + e.getMessage());
+                Metrics.count(Metrics.UPLOAD_FAILURE);
+                if (UploadDrain.isEndpointFailure(e)) {
+                    if (breaker.recordFailure(System.currentTimeMillis())) {
+                        Log.w(TAG, "Endpoint failing, pausing uploads");
+                        Metrics.count(Metrics.CIRCUIT_OPEN);
+                    }
+                    // probably not the item's fault, but a row the endpoint always fails must
+                    // not be leased again at once nor block the probes forever
+                    if (queue.failEndpoint(item.serial, e.toString())) {
+                        Log.w(TAG, "Giving up on file: " + item.fileName);
+                        Metrics.count(Metrics.DEAD_LETTER);
+                    }
+                    return FAILED;
+                }
+                if (UploadDrain.isAuthFailure(e)) {
+                    // rejected credentials fail every upload of this profile, and only those
+                    if (breaker.recordFailure(System.currentTimeMillis())) {
+                        Log.w(TAG, "Credentials rejected, pausing uploads to " + item.target);
+                        Metrics.count(Metrics.CIRCUIT_OPEN);
+                    }
+                } else if (e instanceof AmazonServiceException) {
+                    breaker.recordSuccess();
+                }
+                // the file was deleted or its permission revoked
+                boolean permanent = e instanceof FileNotFoundException ||
+                        e instanceof SecurityException;
+                if (queue.fail(item.serial, e.toString(), permanent)) {
+                    Log.w(TAG, "Giving up on file: " + item.fileName);
+                    Metrics.count(Metrics.DEAD_LETTER);
+                }
+                return FAILED;
+            } finally {
+                if (policy.metered) {
+                    // includes bytes of failed attempts, which also used the data plan
+                    MeteredUsage.getInstance(context).add(bucket.takeAcquired());
+                }
+            }
+            if (outcome == UPLOADED) {
+                breaker.recordSuccess();
+                queue.remove(item.serial);
+            }
+            return outcome;
+        }
+
+        /** @return UPLOADED or the reason to defer the upload */
+        private int upload() throws IOException {
+            Log.d(TAG, "Found image to upload: " + item.fileName);
+            ContentResolver resolver = context.getContentResolver();
+            // get real file size since something modifies the file between the intent and
+            // uploading
+            long fileSize;
+            try (AssetFileDescriptor afd = resolver.openAssetFileDescriptor(item.uri, "r")) {
+                fileSize = afd.getLength();
+            }
+            long fileMtime = UploadIndex.queryMtime(resolver, item.uri);
+            UploadIndex index = UploadIndex.getInstance(context);
+            if (index.isUploaded(item.target, item.uri, fileSize, fileMtime)) {
+                Log.d(TAG, "Skipping unchanged file: " + item.fileName);
+                return UPLOADED;
+            }
+            String contentType = resolver.getType(item.uri);
+            if (policy.mustWaitForCharger(contentType, fileSize)) {
+                Log.d(TAG, "Deferring large video until charging: " + item.fileName);
+                return DEFERRED_CHARGING;
+            }
+            if (policy.metered && meteredBytesRemaining.addAndGet(-fileSize) < 0) {
+                meteredBytesRemaining.addAndGet(fileSize);
+                Log.d(TAG, "Deferring upload beyond metered budget: " + item.fileName);
+                return DEFERRED_UNMETERED;
+            }
+
+            String[] expectedETags = null;
+            String key = null;
+            String baseKey = "Camera Uploads/" + item.fileName;
+            for (int i = 0; i < MAX_KEY_ATTEMPTS; ++i) {
+                String candidate = i == 0 ? baseKey : numberedKey(baseKey, i);
+                ObjectMetadata existing = getMetadata(candidate);
+                if (existing == null) {
+                    key = candidate;
+                    break;
+                }
+                // encoded objects differ in every upload so compare their plaintext instead
+                boolean transformed = ObjectTransform.isTransformed(existing);
+                if ((transformed ? ObjectTransform.plainLength(existing) :
+                        existing.getContentLength()) != fileSize) {
+                    continue;
+                }
+                if (expectedETags == null) {
+                    try (InputStream is = resolver.openInputStream(item.uri)) {
+                        expectedETags = UploadIndex.expectedETags(is,
+                                MultipartUploader.partSize(fileSize));
+                    }
+                }
+                String existingETag = transformed ? ObjectTransform.plainMd5(existing) :
+                        existing.getETag();
+                String expected = existingETag != null && existingETag.contains("-") ?
+                        expectedETags[1] : expectedETags[0];
+                if (UploadIndex.eTagMatches(existingETag, expected)) {
+                    Log.d(TAG, "Skipping file already in bucket: " + candidate);
+                    index.put(item.target, item.uri, fileSize, fileMtime, expected, candidate);
+                    return UPLOADED;
+                }
+            }
+            if (key == null) {
+                throw new IOException("Could not find unused key for " + baseKey);
+            }
+
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(contentType);
+            Uri uri = item.uri;
+            long length = fileSize;
+            File spool = null;
+            String plainMd5 = null;
+            if (ObjectTransform.shouldTransform(compress, passphrase, contentType)) {
+                boolean deflate = compress && ObjectTransform.shouldCompress(contentType);
+                spool = spoolFile(fileSize, fileMtime, deflate);
+                if (spool.isFile() && ObjectTransform.canReuse(spool, deflate, passphrase)) {
+                    // complete from an earlier attempt whose parts may resume
+                    if (expectedETags == null) {
+                        try (InputStream is = resolver.openInputStream(item.uri)) {
+                            expectedETags = UploadIndex.expectedETags(is,
+                                    MultipartUploader.partSize(fileSize));
+                        }
+                    }
+                    plainMd5 = expectedETags[0];
+                } else {
+                    try (HashingInputStream is = new HashingInputStream(
+                            resolver.openInputStream(item.uri))) {
+                        ObjectTransform.spool(is, spool, deflate, passphrase);
+                        plainMd5 = UploadIndex.toHex(is.md5());
+                    }
+                    // parts sent earlier came from a different encoding
+                    multipartUploader.discard(item.serial, bucketName, key);
+                }
+                ObjectTransform.setMetadata(metadata, fileSize, plainMd5);
+                uri = Uri.fromFile(spool);
+                length = spool.length();
+            }
+
+            String eTag = length >= MultipartUploader.MULTIPART_THRESHOLD ?
+                    multipartUploader.upload(item.serial, bucketName, key, uri, length,
+                            metadata) :
+                    putObject(key, uri, length, metadata);
+            index.put(item.target, item.uri, fileSize, fileMtime,
+                    plainMd5 != null ? plainMd5 : eTag, key);
+            if (spool != null) {
+                // kept after failures so that the next attempt resumes with the same bytes
+                spool.delete();
+            }
+            return UPLOADED;
+        }
+
+        /** Single request upload of uri, checked against the returned ETag. */
+        private String putObject(String key, Uri uri, long length, ObjectMetadata metadata)
+                throws IOException {
+            metadata.setContentLength(length);
+            PutObjectResult result;
+            String md5;
+            try (HashingInputStream is = new HashingInputStream(new ThrottledInputStream(
+                    context.getContentResolver().openInputStream(uri), bucket))) {
+                long start = System.nanoTime();
+                result = client.putObject(bucketName, key, is, metadata);
+                Metrics.transfer(Metrics.PUT, start, length);
+                md5 = UploadIndex.toHex(is.md5());
+            }
+            if (UploadIndex.isMd5ETag(result.getETag()) &&
+                    !UploadIndex.eTagMatches(result.getETag(), md5)) {
+                throw new IOException("Checksum mismatch for " + key + ": expected " + md5 +
+                        " actual " + result.getETag());
+            }
+            return md5;
+        }
+
+        /**
+         * Spool for this item, named by its input and encoding settings so that a retry finds
+         * it.  The name leaves out the passphrase; {@link ObjectTransform#canReuse} checks it.
+         */
+        private File spoolFile(long fileSize, long fileMtime, boolean deflate) {
+            return new File(spoolDirectory(), item.serial + "-" + BlobCache.digest(
+                    item.uri.toString(), String.valueOf(fileSize), String.valueOf(fileMtime),
+                    String.valueOf(deflate), String.valueOf(passphrase != null)));
+        }
+
+        private ObjectMetadata getMetadata(String key) {
+            try {
+                return client.getObjectMetadata(bucketName, key);
+            } catch (AmazonServiceException ase) {
+                if (ase.getStatusCode() == 404) {
+                    return null;
+                }
+                throw ase;
+            }
+        }
+    }
+
+    /** Insert a number before the extension, e.g., IMG_1.jpg becomes IMG_1 (2).jpg. */
+    static String numberedKey(String key, int number) {
+        int slash = key.lastIndexOf('/');
+        int dot = key.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            dot = key.length();
+        }
+        return key.substring(0, dot) + " (" + (number + 1) + ")" + key.substring(dot);
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs indexed tasks on a few workers which claim indexes in order from a shared counter.  A
+ * worker whose task fails or stops raises a shared abort flag before it returns, so the other
+ * workers stop after their current task instead of draining the remaining indexes.
+ */
+final class Workers {
+    private Workers() {
+        throw new AssertionError("intentionally unimplemented");
+    }
+
+    interface Task {
+        /**
+         * Process index.
+         *
+         * @return false to stop all workers without failing
+         */
+        boolean run(int index) throws IOException;
+    }
+
+    /**
+     * Run task for each index in [0, count) on up to concurrency workers and wait for all of
+     * them.  The first failure is rethrown once every worker has returned.  An interrupted
+     * caller stops the workers, waits for them and returns false with its interrupt status
+     * restored.
+     *
+     * @return true if every index was processed
+     */
+    static boolean run(ExecutorService executor, int concurrency, final int count,
+            final Task task) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean abort = new AtomicBoolean();
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < Math.min(concurrency, count); ++i) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    boolean done = false;
+                    try {
+                        while (!abort.get()) {
+                            int index = next.getAndIncrement();
+                            if (index >= count) {
+                                done = true;
+                                break;
+                            }
+                            if (!task.run(index)) {
+                                break;
+                            }
+                        }
+                    } finally {
+                        if (!done) {
+                            abort.set(true);
+                        }
+                    }
+                    return done;
+                }
+            }));
+        }
+
+        boolean success = true;
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (Future<Boolean> future : futures) {
+            while (true) {
+                try {
+                    success &= future.get();
+                    break;
+                } catch (InterruptedException ie) {
+                    // keep waiting so no worker outlives the caller's resources
+                    interrupted = true;
+                    abort.set(true);
+                } catch (ExecutionException ee) {
+                    success = false;
+                    if (failure == null) {
+                        failure = ee.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+        return success && !interrupted;
+    }
+}
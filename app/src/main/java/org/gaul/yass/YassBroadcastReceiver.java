@@ -16,190 +16,117 @@
 package org.gaul.yass;
 
 import android.content.BroadcastReceiver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 import android.util.Log;
 
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectResult;
-
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public final class YassBroadcastReceiver extends BroadcastReceiver {
-    // TODO: needs to run once on startup
-
     private static final String TAG = "YassBroadcastReceiver";
 
+    /** New photos waiting for EnqueueCameraTask, which inserts a burst in one transaction. */
+    private static final List<Intent> pendingPhotos = new ArrayList<>();
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (intent.getAction().equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
+        if (intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
+            Log.d(TAG, "Received boot intent");
+            UploadJobs.schedule(context);
+            OfflineSync.schedule(context);
+        } else if (intent.getAction().equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
             Log.d(TAG, "Received connectivity intent: " + intent);
-            if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
-                new UploadBlobTask(context).execute((Void) null);
+            // the upload job waits for connectivity itself
+            if (!UploadJobs.isSupported() &&
+                    !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                UploadScheduler.getInstance(context).drain();
+            }
+        } else if (intent.getAction().equals(Intent.ACTION_POWER_CONNECTED)) {
+            Log.d(TAG, "Received power connected intent");
+            // the deferred upload job waits for the charger itself
+            if (!UploadJobs.isSupported()) {
+                UploadScheduler.getInstance(context).drain();
             }
         } else {
+            // Camera.ACTION_NEW_PICTURE or Camera.ACTION_NEW_VIDEO
             Log.d(TAG, "Received new photo: " + intent.getData().getPath());
-            new EnqueueCameraTask(context).execute(intent);
+            synchronized (pendingPhotos) {
+                pendingPhotos.add(intent);
+                if (pendingPhotos.size() > 1) {
+                    // an EnqueueCameraTask is already pending
+                    return;
+                }
+            }
+            new EnqueueCameraTask(context).execute();
         }
     }
 
-    private final class EnqueueCameraTask extends AsyncTask<Intent, Void, Long> {
+    private static final class EnqueueCameraTask extends AsyncTask<Void, Void, Void> {
         private final Context context;
 
         EnqueueCameraTask(Context context) {
-            this.context = context;
+            this.context = context.getApplicationContext();
         }
 
         @Override
-        public Long doInBackground(Intent... intent) {
-            MainActivity.YassPreferences preferences = new MainActivity.YassPreferences(context);
-            if (!preferences.cameraUpload) {
-                return null;
+        public Void doInBackground(Void... unused) {
+            List<Intent> intents;
+            synchronized (pendingPhotos) {
+                intents = new ArrayList<>(pendingPhotos);
+                pendingPhotos.clear();
             }
 
-            Uri uri = intent[0].getData();
-            Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
-            int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-            int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
-            cursor.moveToFirst();
-            String fileName = cursor.getString(nameIndex);
-            long fileSize = cursor.getLong(sizeIndex);
-            cursor.close();
-
-            SQLiteDatabase db = new YassDbHelper(context).getWritableDatabase();
-
-            try {
-                ContentValues values = new ContentValues();
-                values.put("file_uri", uri.toString());
-                values.put("file_name", fileName);
-                values.put("file_size", fileSize);
-                return db.insert("camera_uploads", null, values);
-            } finally {
-                db.close();
-            }
-        }
-
-        @Override
-        protected void onPostExecute(Long serial) {
-            new UploadBlobTask(context).execute((Void) null);
-        }
-    }
-
-    private final class UploadBlobTask extends AsyncTask<Void, Void, Long> {
-        private final Context context;
-
-        UploadBlobTask(Context context) {
-            this.context = context;
-        }
-
-        @Override
-        public Long doInBackground(Void... unused) {
-            Log.d(TAG, "Upload Blob Task:");
-
             MainActivity.YassPreferences preferences = new MainActivity.YassPreferences(context);
-
-            ConnectivityManager cm =
-                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-            NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-            boolean isConnected = activeNetwork != null &&
-                      activeNetwork.isConnectedOrConnecting();
-            if (!isConnected) {
-                Log.d(TAG, "Skipping camera upload because network is disconnected");
-                return null;
-            }
-            if (preferences.cameraUploadOnlyOnWifi && activeNetwork.getType() != ConnectivityManager.TYPE_WIFI) {
-                Log.d(TAG, "Skipping camera upload because Wifi is disconnected");
+            if (!preferences.cameraUpload) {
                 return null;
             }
 
-            long serial;
-            Uri uri;
-            String fileName;
-            long fileSize;
-            SQLiteDatabase db = new YassDbHelper(context).getReadableDatabase();
-            try {
-                String[] projection = {
-                        "serial",
-                        "file_uri",
-                        "file_name",
-                        "file_size"
-                };
-                String selection = null;
-                String[] selectionArgs = null;
-                String groupBy = null;
-                String having = null;
-                String orderBy = "serial ASC";
-                String limit = "1";
-                Cursor cursor = db.query("camera_uploads", projection, selection, selectionArgs,
-                        groupBy, having, orderBy, limit);
+            UploadIndex index = UploadIndex.getInstance(context);
+            // one row per target so that the primary and the backup upload independently
+            List<String> targets = preferences.uploadTargets();
+            List<UploadQueue.NewItem> items = new ArrayList<>();
+            for (Intent intent : intents) {
+                Uri uri = intent.getData();
+                Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
+                if (cursor == null) {
+                    Log.w(TAG, "Could not query new photo: " + uri);
+                    continue;
+                }
                 try {
-                    if (!cursor.moveToNext()) {
-                        Log.d(TAG, "Did not find image to upload");
-                        return null;
+                    if (!cursor.moveToFirst()) {
+                        continue;
                     }
-                    serial = cursor.getLong(cursor.getColumnIndexOrThrow("serial"));
-                    uri = Uri.parse(cursor.getString(cursor.getColumnIndexOrThrow("file_uri")));
-                    fileName = cursor.getString(cursor.getColumnIndexOrThrow("file_name"));
-                    try {
-                        // get real file size since something modifies the file between the intent and uploading
-                        AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
-                        fileSize = afd.getLength();
-                        afd.close();
-                    } catch (IOException ioe) {
-                        Log.e(TAG, "Could not get file size: " + fileName);
-                        return null;
+                    int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                    int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    int mtimeIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+                    long fileSize = cursor.getLong(sizeIndex);
+                    long fileMtime = mtimeIndex == -1 ? 0 : cursor.getLong(mtimeIndex);
+                    for (String target : targets) {
+                        if (index.isUploaded(target, uri, fileSize, fileMtime)) {
+                            Log.d(TAG, "Skipping unchanged photo: " + uri + " for " + target);
+                            continue;
+                        }
+                        items.add(new UploadQueue.NewItem(uri, cursor.getString(nameIndex),
+                                fileSize, target));
                     }
                 } finally {
                     cursor.close();
                 }
-            } finally {
-                db.close();
-            }
-
-            Log.d(TAG, "Found image to upload: " + fileName);
-
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentLength(fileSize);
-            metadata.setContentType(context.getContentResolver().getType(uri));
-            PutObjectResult result;
-            try (InputStream is = context.getContentResolver().openInputStream(uri)) {
-                // TODO: limited to 5 GB
-                result = MainActivity.getS3Client(preferences).putObject(preferences.bucketName,
-                        "Camera Uploads/" + fileName, is, metadata);
-            } catch (AmazonClientException | IOException e) {
-                Log.e(TAG, "Could not upload file: " + e.getMessage());
-                return null;
             }
-            return serial;
+            UploadQueue.getInstance(context).enqueue(items);
+            return null;
         }
 
         @Override
-        protected void onPostExecute(Long serial) {
-            if (serial == null) {
-                return;
-            }
-
-            SQLiteDatabase db = new YassDbHelper(context).getWritableDatabase();
-            try {
-                String selection = "serial = ?";
-                String[] selectionArgs = {"serial"};
-                db.delete("camera_uploads", selection, new String[] {serial.toString()});
-            } finally {
-                db.close();
-            }
-
-            new UploadBlobTask(context).execute((Void) null);
+        protected void onPostExecute(Void unused) {
+            UploadJobs.schedule(context);
         }
     }
 }
@@ -5,7 +5,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 public final class YassDbHelper extends SQLiteOpenHelper {
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 16;
     private static final String DATABASE_NAME = "yass.db";
 
     private static final String SQL_CREATE_ENTRIES =
@@ -13,27 +13,324 @@ public final class YassDbHelper extends SQLiteOpenHelper {
                     "serial INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL" +
                     ", file_name TEXT NOT NULL" +
                     ", file_uri TEXT NOT NULL" +
-                    ", file_size INTEGER NOT NULL)";
+                    ", file_size INTEGER NOT NULL" +
+                    ", upload_id TEXT" +
+                    ", upload_size INTEGER" +
+                    ", leased_until INTEGER NOT NULL DEFAULT 0" +
+                    ", enqueued_at INTEGER NOT NULL DEFAULT 0" +
+                    ", attempts INTEGER NOT NULL DEFAULT 0" +
+                    ", next_attempt INTEGER NOT NULL DEFAULT 0" +
+                    ", dead INTEGER NOT NULL DEFAULT 0" +
+                    ", last_error TEXT" +
+                    ", target TEXT NOT NULL DEFAULT 'default'" +
+                    ", endpoint_failures INTEGER NOT NULL DEFAULT 0)";
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS camera_uploads";
 
-    public YassDbHelper(Context context) {
+    // version 2
+    private static final String SQL_CREATE_LISTING_CACHE =
+            "CREATE TABLE listing_cache (" +
+                    "endpoint TEXT NOT NULL" +
+                    ", bucket TEXT NOT NULL" +
+                    ", prefix TEXT NOT NULL" +
+                    ", names BLOB NOT NULL" +
+                    ", validator TEXT NOT NULL" +
+                    ", size INTEGER NOT NULL" +
+                    ", last_access INTEGER NOT NULL" +
+                    ", PRIMARY KEY (endpoint, bucket, prefix))";
+    private static final String SQL_DELETE_LISTING_CACHE =
+            "DROP TABLE IF EXISTS listing_cache";
+
+    // version 3
+    private static final String SQL_CREATE_PARTIAL_DOWNLOADS =
+            "CREATE TABLE partial_downloads (" +
+                    "id TEXT PRIMARY KEY NOT NULL" +
+                    ", bucket TEXT NOT NULL" +
+                    ", key TEXT NOT NULL" +
+                    ", e_tag TEXT" +
+                    ", content_length INTEGER NOT NULL" +
+                    ", bytes_written INTEGER NOT NULL" +
+                    ", parts TEXT NOT NULL" +
+                    ", last_update INTEGER NOT NULL)";
+    private static final String SQL_DELETE_PARTIAL_DOWNLOADS =
+            "DROP TABLE IF EXISTS partial_downloads";
+
+    // version 4
+    private static final String[] SQL_ALTER_CAMERA_UPLOADS_MULTIPART = {
+            "ALTER TABLE camera_uploads ADD COLUMN upload_id TEXT",
+            "ALTER TABLE camera_uploads ADD COLUMN upload_size INTEGER"
+    };
+    private static final String SQL_CREATE_CAMERA_UPLOAD_PARTS =
+            "CREATE TABLE camera_upload_parts (" +
+                    "serial INTEGER NOT NULL" +
+                    ", part_number INTEGER NOT NULL" +
+                    ", e_tag TEXT NOT NULL" +
+                    ", PRIMARY KEY (serial, part_number))";
+    private static final String SQL_DELETE_CAMERA_UPLOAD_PARTS =
+            "DROP TABLE IF EXISTS camera_upload_parts";
+
+    // version 5
+    private static final String SQL_ALTER_CAMERA_UPLOADS_LEASE =
+            "ALTER TABLE camera_uploads ADD COLUMN leased_until INTEGER NOT NULL DEFAULT 0";
+
+    // version 6
+    private static final String SQL_CREATE_UPLOADED_FILES =
+            "CREATE TABLE uploaded_files (" +
+                    "file_uri TEXT NOT NULL" +
+                    ", target TEXT NOT NULL DEFAULT 'default'" +
+                    ", file_size INTEGER NOT NULL" +
+                    ", file_mtime INTEGER NOT NULL" +
+                    ", md5 TEXT" +
+                    ", object_key TEXT NOT NULL" +
+                    ", uploaded_at INTEGER NOT NULL" +
+                    ", PRIMARY KEY (file_uri, target))";
+    private static final String SQL_DELETE_UPLOADED_FILES =
+            "DROP TABLE IF EXISTS uploaded_files";
+
+    // version 7: listings also encode size, modification time and a folder flag
+    private static final String SQL_CLEAR_LISTING_CACHE = "DELETE FROM listing_cache";
+
+    // version 8; version 14 indexes keys folded by SearchQuery.fold
+    private static final String[] SQL_CREATE_SEARCH_INDEX = {
+            "CREATE TABLE search_index (" +
+                    "endpoint TEXT NOT NULL" +
+                    ", bucket TEXT NOT NULL" +
+                    ", object_key TEXT NOT NULL" +
+                    ", folded_key TEXT NOT NULL" +
+                    ", size INTEGER NOT NULL" +
+                    ", last_modified INTEGER NOT NULL" +
+                    ", UNIQUE (endpoint, bucket, object_key))",
+            "CREATE VIRTUAL TABLE search_index_fts USING fts4(" +
+                    "content=\"search_index\", folded_key)",
+            // keep the external content FTS table in sync as the FTS4 documentation describes
+            "CREATE TRIGGER search_index_bd BEFORE DELETE ON search_index BEGIN " +
+                    "DELETE FROM search_index_fts WHERE docid = old.rowid; END",
+            "CREATE TRIGGER search_index_bu BEFORE UPDATE ON search_index BEGIN " +
+                    "DELETE FROM search_index_fts WHERE docid = old.rowid; END",
+            "CREATE TRIGGER search_index_au AFTER UPDATE ON search_index BEGIN " +
+                    "INSERT INTO search_index_fts (docid, folded_key) " +
+                    "VALUES (new.rowid, new.folded_key); END",
+            "CREATE TRIGGER search_index_ai AFTER INSERT ON search_index BEGIN " +
+                    "INSERT INTO search_index_fts (docid, folded_key) " +
+                    "VALUES (new.rowid, new.folded_key); END",
+            "CREATE TABLE search_scopes (" +
+                    "endpoint TEXT NOT NULL" +
+                    ", bucket TEXT NOT NULL" +
+                    ", prefix TEXT NOT NULL" +
+                    ", indexed_at INTEGER NOT NULL" +
+                    ", PRIMARY KEY (endpoint, bucket, prefix))",
+    };
+    private static final String[] SQL_DELETE_SEARCH_INDEX = {
+            "DROP TABLE IF EXISTS search_index_fts",
+            "DROP TABLE IF EXISTS search_index",
+            "DROP TABLE IF EXISTS search_scopes",
+    };
+
+    // version 9
+    private static final String SQL_CREATE_METERED_USAGE =
+            "CREATE TABLE metered_usage (" +
+                    "month TEXT PRIMARY KEY NOT NULL" +
+                    ", bytes INTEGER NOT NULL)";
+    private static final String SQL_DELETE_METERED_USAGE =
+            "DROP TABLE IF EXISTS metered_usage";
+
+    // version 10
+    private static final String SQL_ALTER_CAMERA_UPLOADS_ENQUEUED =
+            "ALTER TABLE camera_uploads ADD COLUMN enqueued_at INTEGER NOT NULL DEFAULT 0";
+    private static final String SQL_CREATE_METRICS =
+            "CREATE TABLE metrics (" +
+                    "window_start INTEGER NOT NULL" +
+                    ", name TEXT NOT NULL" +
+                    ", count INTEGER NOT NULL" +
+                    ", sum INTEGER NOT NULL" +
+                    ", bytes INTEGER NOT NULL" +
+                    ", buckets TEXT NOT NULL" +
+                    ", PRIMARY KEY (window_start, name))";
+    private static final String SQL_DELETE_METRICS =
+            "DROP TABLE IF EXISTS metrics";
+
+    // version 11
+    private static final String[] SQL_CREATE_OFFLINE = {
+            "CREATE TABLE offline_prefixes (" +
+                    "endpoint TEXT NOT NULL" +
+                    ", bucket TEXT NOT NULL" +
+                    ", prefix TEXT NOT NULL" +
+                    ", synced_at INTEGER NOT NULL" +
+                    ", PRIMARY KEY (endpoint, bucket, prefix))",
+            "CREATE TABLE offline_objects (" +
+                    "endpoint TEXT NOT NULL" +
+                    ", bucket TEXT NOT NULL" +
+                    ", object_key TEXT NOT NULL" +
+                    ", e_tag TEXT" +
+                    ", size INTEGER NOT NULL" +
+                    ", last_modified INTEGER NOT NULL" +
+                    ", transformed INTEGER NOT NULL DEFAULT 0" +
+                    ", PRIMARY KEY (endpoint, bucket, object_key))",
+    };
+    private static final String[] SQL_DELETE_OFFLINE = {
+            "DROP TABLE IF EXISTS offline_prefixes",
+            "DROP TABLE IF EXISTS offline_objects",
+    };
+
+    // version 12
+    private static final String[] SQL_ALTER_CAMERA_UPLOADS_RETRY = {
+            "ALTER TABLE camera_uploads ADD COLUMN attempts INTEGER NOT NULL DEFAULT 0",
+            "ALTER TABLE camera_uploads ADD COLUMN next_attempt INTEGER NOT NULL DEFAULT 0",
+            "ALTER TABLE camera_uploads ADD COLUMN dead INTEGER NOT NULL DEFAULT 0",
+            "ALTER TABLE camera_uploads ADD COLUMN last_error TEXT"
+    };
+
+    // version 13: uploads go to named profiles; earlier rows belong to the default profile
+    private static final String SQL_ALTER_CAMERA_UPLOADS_TARGET =
+            "ALTER TABLE camera_uploads ADD COLUMN target TEXT NOT NULL DEFAULT 'default'";
+    private static final String[] SQL_REBUILD_UPLOADED_FILES = {
+            "ALTER TABLE uploaded_files RENAME TO uploaded_files_old",
+            SQL_CREATE_UPLOADED_FILES,
+            "INSERT INTO uploaded_files" +
+                    " (file_uri, file_size, file_mtime, md5, object_key, uploaded_at)" +
+                    " SELECT file_uri, file_size, file_mtime, md5, object_key, uploaded_at" +
+                    " FROM uploaded_files_old",
+            "DROP TABLE uploaded_files_old"
+    };
+
+    // version 15: failures of the endpoint back rows off against their own cap
+    private static final String SQL_ALTER_CAMERA_UPLOADS_ENDPOINT_FAILURES =
+            "ALTER TABLE camera_uploads ADD COLUMN endpoint_failures INTEGER NOT NULL DEFAULT 0";
+
+    // version 16: offline copies record whether they are encoded, so existing copies, whose
+    // format is unknown, download again with the next sync
+    private static final String[] SQL_ALTER_OFFLINE_OBJECTS_TRANSFORMED = {
+            "ALTER TABLE offline_objects ADD COLUMN transformed INTEGER NOT NULL DEFAULT 0",
+            "DELETE FROM offline_objects",
+            "UPDATE offline_prefixes SET synced_at = 0"
+    };
+
+    private static YassDbHelper instance;
+
+    private YassDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * The helper is shared by the whole process and never closed so that every caller reuses
+     * one connection pool and its compiled statements.
+     */
+    public static synchronized YassDbHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new YassDbHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Let the activity read listings while uploads write to the queue.
+        db.enableWriteAheadLogging();
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_LISTING_CACHE);
+        db.execSQL(SQL_CREATE_PARTIAL_DOWNLOADS);
+        db.execSQL(SQL_CREATE_CAMERA_UPLOAD_PARTS);
+        db.execSQL(SQL_CREATE_UPLOADED_FILES);
+        for (String sql : SQL_CREATE_SEARCH_INDEX) {
+            db.execSQL(sql);
+        }
+        db.execSQL(SQL_CREATE_METERED_USAGE);
+        db.execSQL(SQL_CREATE_METRICS);
+        for (String sql : SQL_CREATE_OFFLINE) {
+            db.execSQL(sql);
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        // Upgrade step by step so that pending camera uploads survive.
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_LISTING_CACHE);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(SQL_CREATE_PARTIAL_DOWNLOADS);
+        }
+        if (oldVersion < 4) {
+            for (String sql : SQL_ALTER_CAMERA_UPLOADS_MULTIPART) {
+                db.execSQL(sql);
+            }
+            db.execSQL(SQL_CREATE_CAMERA_UPLOAD_PARTS);
+        }
+        if (oldVersion < 5) {
+            db.execSQL(SQL_ALTER_CAMERA_UPLOADS_LEASE);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(SQL_CREATE_UPLOADED_FILES);
+        }
+        if (oldVersion < 7) {
+            db.execSQL(SQL_CLEAR_LISTING_CACHE);
+        }
+        if (oldVersion < 8) {
+            for (String sql : SQL_CREATE_SEARCH_INDEX) {
+                db.execSQL(sql);
+            }
+        }
+        if (oldVersion < 9) {
+            db.execSQL(SQL_CREATE_METERED_USAGE);
+        }
+        if (oldVersion < 10) {
+            db.execSQL(SQL_ALTER_CAMERA_UPLOADS_ENQUEUED);
+            db.execSQL(SQL_CREATE_METRICS);
+        }
+        if (oldVersion < 11) {
+            for (String sql : SQL_CREATE_OFFLINE) {
+                db.execSQL(sql);
+            }
+        }
+        if (oldVersion < 12) {
+            for (String sql : SQL_ALTER_CAMERA_UPLOADS_RETRY) {
+                db.execSQL(sql);
+            }
+        }
+        if (oldVersion < 13) {
+            db.execSQL(SQL_ALTER_CAMERA_UPLOADS_TARGET);
+            for (String sql : SQL_REBUILD_UPLOADED_FILES) {
+                db.execSQL(sql);
+            }
+        }
+        if (oldVersion < 14) {
+            // the index is a cache; searches crawl again
+            for (String sql : SQL_DELETE_SEARCH_INDEX) {
+                db.execSQL(sql);
+            }
+            for (String sql : SQL_CREATE_SEARCH_INDEX) {
+                db.execSQL(sql);
+            }
+        }
+        if (oldVersion < 15) {
+            db.execSQL(SQL_ALTER_CAMERA_UPLOADS_ENDPOINT_FAILURES);
+        }
+        if (oldVersion < 16) {
+            for (String sql : SQL_ALTER_OFFLINE_OBJECTS_TRANSFORMED) {
+                db.execSQL(sql);
+            }
+        }
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_LISTING_CACHE);
+        db.execSQL(SQL_DELETE_PARTIAL_DOWNLOADS);
+        db.execSQL(SQL_DELETE_CAMERA_UPLOAD_PARTS);
+        db.execSQL(SQL_DELETE_UPLOADED_FILES);
+        for (String sql : SQL_DELETE_SEARCH_INDEX) {
+            db.execSQL(sql);
+        }
+        db.execSQL(SQL_DELETE_METERED_USAGE);
+        db.execSQL(SQL_DELETE_METRICS);
+        for (String sql : SQL_DELETE_OFFLINE) {
+            db.execSQL(sql);
+        }
+        onCreate(db);
     }
 }
@@ -0,0 +1,466 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process S3 endpoint for tests and benchmarks.  It serves path-style ListObjects, HEAD,
+ * ranged GET with If-Match and single-request PUT from memory, without checking signatures.
+ * Each response can be delayed, throttled and made to fail so that callers see the latency,
+ * bandwidth and faults of a mobile network without leaving the JVM.
+ */
+final class FakeS3 implements Closeable {
+    private static final String XMLNS = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ConcurrentMap<String, NavigableMap<String, Blob>> buckets =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> failingKeys = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile int maxKeys = 1000;
+    private volatile int failEvery;
+    private volatile int failStatus;
+    private volatile int truncateEvery;
+
+    private static final class Blob {
+        final byte[] content;
+        final String eTag;
+        final Date lastModified = new Date();
+
+        Blob(byte[] content) {
+            this.content = content;
+            this.eTag = UploadIndex.toHex(HashingInputStream.newMd5().digest(content));
+        }
+    }
+
+    FakeS3() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    FakeS3.this.handle(exchange);
+                } catch (IOException ioe) {
+                    // the client went away or a response was truncated on purpose
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    String endpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /** Client for this endpoint which does not retry, so that tests see every fault. */
+    AmazonS3 newClient() {
+        AmazonS3Client client = new AmazonS3Client(new BasicAWSCredentials("access", "secret"),
+                new ClientConfiguration().withMaxErrorRetry(0));
+        client.setEndpoint(endpoint());
+        client.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+        return client;
+    }
+
+    void createBucket(String bucketName) {
+        buckets.putIfAbsent(bucketName, new ConcurrentSkipListMap<String, Blob>());
+    }
+
+    void put(String bucketName, String key, byte[] content) {
+        createBucket(bucketName);
+        buckets.get(bucketName).put(key, new Blob(content));
+    }
+
+    /** @return the content of key, or null if it does not exist */
+    byte[] get(String bucketName, String key) {
+        NavigableMap<String, Blob> bucket = buckets.get(bucketName);
+        Blob blob = bucket == null ? null : bucket.get(key);
+        return blob == null ? null : blob.content;
+    }
+
+    int size(String bucketName) {
+        NavigableMap<String, Blob> bucket = buckets.get(bucketName);
+        return bucket == null ? 0 : bucket.size();
+    }
+
+    /** Number of requests received so far. */
+    int requestCount() {
+        return requests.get();
+    }
+
+    /** Delay every response by millis, like the round trip of a mobile network. */
+    FakeS3 setLatency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /** Limit each response body to bytesPerSecond, or 0 for unlimited. */
+    FakeS3 setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /** Limit listing pages to maxKeys, like an endpoint with a lower limit than S3. */
+    FakeS3 setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+        return this;
+    }
+
+    /** Answer every nth request with status, or every request if n is 1; 0 disables. */
+    FakeS3 failEvery(int n, int status) {
+        this.failStatus = status;
+        this.failEvery = n;
+        return this;
+    }
+
+    /** Answer every request for key, in any bucket, with status. */
+    FakeS3 failKey(String key, int status) {
+        failingKeys.put(key, status);
+        return this;
+    }
+
+    /** Close the connection halfway through every nth response body; 0 disables. */
+    FakeS3 truncateEvery(int n) {
+        this.truncateEvery = n;
+        return this;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int request = requests.incrementAndGet();
+        long latency = latencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        String method = exchange.getRequestMethod();
+        byte[] body = readBody(exchange);
+        int every = failEvery;
+        if (every > 0 && request % every == 0) {
+            sendError(exchange, failStatus);
+            return;
+        }
+        boolean truncate = truncateEvery > 0 && request % truncateEvery == 0;
+
+        // path-style: /bucket or /bucket/key
+        String path = exchange.getRequestURI().getPath();
+        int slash = path.indexOf('/', 1);
+        String bucketName = slash == -1 ? path.substring(1) : path.substring(1, slash);
+        String key = slash == -1 ? "" : path.substring(slash + 1);
+        Integer keyStatus = failingKeys.get(key);
+        if (keyStatus != null) {
+            sendError(exchange, keyStatus);
+            return;
+        }
+        NavigableMap<String, Blob> bucket = buckets.get(bucketName);
+        if (bucket == null) {
+            sendError(exchange, 404, "NoSuchBucket");
+            return;
+        }
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        if (key.isEmpty() && method.equals("GET")) {
+            sendBody(exchange, 200, listObjects(bucketName, bucket, params), truncate);
+            return;
+        }
+        if (key.isEmpty() || !params.isEmpty()) {
+            sendError(exchange, 501, "NotImplemented");
+            return;
+        }
+        switch (method) {
+            case "PUT":
+                Blob blob = new Blob(body);
+                bucket.put(key, blob);
+                exchange.getResponseHeaders().set("ETag", "\"" + blob.eTag + "\"");
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            case "HEAD":
+            case "GET":
+                getObject(exchange, bucket.get(key), method.equals("HEAD"), truncate);
+                return;
+            default:
+                sendError(exchange, 405, "MethodNotAllowed");
+        }
+    }
+
+    private void getObject(HttpExchange exchange, Blob blob, boolean head, boolean truncate)
+            throws IOException {
+        if (blob == null) {
+            sendError(exchange, 404, "NoSuchKey");
+            return;
+        }
+        Headers request = exchange.getRequestHeaders();
+        String ifMatch = request.getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.replace("\"", "").equals(blob.eTag)) {
+            sendError(exchange, 412, "PreconditionFailed");
+            return;
+        }
+        int length = blob.content.length;
+        int start = 0;
+        int end = length;
+        int status = 200;
+        String range = request.getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Math.min(length, Integer.parseInt(bounds[1]) + 1);
+            }
+            if (start >= end) {
+                sendError(exchange, 416, "InvalidRange");
+                return;
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + (end - 1) + "/" + length);
+        }
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", "\"" + blob.eTag + "\"");
+        headers.set("Last-Modified", httpDate(blob.lastModified));
+        headers.set("Content-Type", "application/octet-stream");
+        headers.set("Accept-Ranges", "bytes");
+        if (head) {
+            headers.set("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, end - start);
+        write(exchange.getResponseBody(), blob.content, start, end, truncate);
+    }
+
+    private byte[] listObjects(String bucketName, NavigableMap<String, Blob> bucket,
+            Map<String, String> params) {
+        String prefix = params.containsKey("prefix") ? params.get("prefix") : "";
+        String delimiter = params.get("delimiter");
+        String marker = params.containsKey("marker") ? params.get("marker") : "";
+        int limit = maxKeys;
+        if (params.containsKey("max-keys")) {
+            limit = Math.min(limit, Integer.parseInt(params.get("max-keys")));
+        }
+
+        StringBuilder contents = new StringBuilder();
+        String lastCommonPrefix = null;
+        String nextMarker = null;
+        int count = 0;
+        boolean truncated = false;
+        String from = marker.compareTo(prefix) > 0 ? marker : prefix;
+        for (Map.Entry<String, Blob> entry : bucket.tailMap(from, !from.equals(marker))
+                .entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            String commonPrefix = null;
+            if (delimiter != null) {
+                int index = key.indexOf(delimiter, prefix.length());
+                if (index != -1) {
+                    commonPrefix = key.substring(0, index + delimiter.length());
+                }
+            }
+            if (commonPrefix != null && (commonPrefix.equals(lastCommonPrefix) ||
+                    commonPrefix.equals(marker))) {
+                continue;
+            }
+            if (count == limit) {
+                truncated = true;
+                break;
+            }
+            ++count;
+            if (commonPrefix != null) {
+                contents.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix))
+                        .append("</Prefix></CommonPrefixes>");
+                lastCommonPrefix = commonPrefix;
+                nextMarker = commonPrefix;
+            } else {
+                Blob blob = entry.getValue();
+                contents.append("<Contents><Key>").append(escape(key))
+                        .append("</Key><LastModified>").append(isoDate(blob.lastModified))
+                        .append("</LastModified><ETag>&quot;").append(blob.eTag)
+                        .append("&quot;</ETag><Size>").append(blob.content.length)
+                        .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+                nextMarker = key;
+            }
+        }
+
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<ListBucketResult xmlns=\"").append(XMLNS).append("\">")
+                .append("<Name>").append(escape(bucketName)).append("</Name>")
+                .append("<Prefix>").append(escape(prefix)).append("</Prefix>")
+                .append("<Marker>").append(escape(marker)).append("</Marker>")
+                .append("<MaxKeys>").append(limit).append("</MaxKeys>");
+        if (delimiter != null) {
+            xml.append("<Delimiter>").append(escape(delimiter)).append("</Delimiter>");
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            xml.append("<NextMarker>").append(escape(nextMarker)).append("</NextMarker>");
+        }
+        xml.append(contents).append("</ListBucketResult>");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Send an injected fault. */
+    private void sendError(HttpExchange exchange, int status) throws IOException {
+        sendError(exchange, status, status == 503 ? "SlowDown" :
+                status >= 500 ? "InternalError" : "AccessDenied");
+    }
+
+    private void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error><Code>" + code +
+                "</Code><Message>" + code + "</Message><RequestId>fake</RequestId></Error>";
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        sendBody(exchange, status, xml.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    private void sendBody(HttpExchange exchange, int status, byte[] body, boolean truncate)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        write(exchange.getResponseBody(), body, 0, body.length, truncate);
+    }
+
+    /** Write content[start, end) at the configured bandwidth, or only half of it if truncate. */
+    private void write(OutputStream os, byte[] content, int start, int end, boolean truncate)
+            throws IOException {
+        if (truncate) {
+            end = start + (end - start) / 2;
+        }
+        TokenBucket bucket = new TokenBucket(bytesPerSecond);
+        for (int offset = start; offset < end; offset += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, end - offset);
+            bucket.acquire(count);
+            os.write(content, offset, count);
+            os.flush();
+        }
+        if (truncate) {
+            // closing short of the declared length drops the connection
+            throw new IOException("Truncated response");
+        }
+    }
+
+    /** Read the request body, decoding the chunks of a streaming SigV4 upload. */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream is = exchange.getRequestBody()) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+        }
+        String sha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if (sha256 == null || !sha256.startsWith("STREAMING-")) {
+            return body.toByteArray();
+        }
+        byte[] chunked = body.toByteArray();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        int offset = 0;
+        while (offset < chunked.length) {
+            int lineEnd = offset;
+            while (chunked[lineEnd] != '\r') {
+                ++lineEnd;
+            }
+            String header = new String(chunked, offset, lineEnd - offset,
+                    StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.split(";", 2)[0], 16);
+            decoded.write(chunked, lineEnd + 2, size);
+            offset = lineEnd + 2 + size + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            String[] pair = param.split("=", 2);
+            params.put(URLDecoder.decode(pair[0], "UTF-8"),
+                    pair.length == 1 ? "" : URLDecoder.decode(pair[1], "UTF-8"));
+        }
+        return params;
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String isoDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static String httpDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/** Upload queue in memory for {@link UploadDrain} tests and benchmarks. */
+final class FakeUploadQueue implements UploadDrain.Queue<FakeUploadQueue.Item> {
+    static final class Item {
+        final String target;
+        final String key;
+        final byte[] content;
+        int endpointFailures;
+
+        Item(String target, String key, byte[] content) {
+            this.target = target;
+            this.key = key;
+            this.content = content;
+        }
+    }
+
+    private final Deque<Item> items = new ArrayDeque<>();
+    /** Items backing off, which are not leasable until {@link #expireBackoffs}. */
+    private final List<Item> waiting = new ArrayList<>();
+    private final List<Item> dead = new ArrayList<>();
+    private int released;
+    private volatile boolean stopped;
+
+    synchronized void add(Item item) {
+        items.add(item);
+    }
+
+    synchronized int size() {
+        return items.size();
+    }
+
+    /** Number of items returned without an attempt. */
+    synchronized int released() {
+        return released;
+    }
+
+    synchronized int dead() {
+        return dead.size();
+    }
+
+    /**
+     * Back item off after a failure of the endpoint, like {@link UploadQueue#failEndpoint}.
+     *
+     * @return whether the item was dead-lettered
+     */
+    synchronized boolean failEndpoint(Item item) {
+        if (++item.endpointFailures >= UploadQueue.MAX_ENDPOINT_FAILURES) {
+            dead.add(item);
+            return true;
+        }
+        waiting.add(item);
+        return false;
+    }
+
+    /** Make the items backing off leasable again. */
+    synchronized void expireBackoffs() {
+        items.addAll(waiting);
+        waiting.clear();
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    /** Lease items which never failed first, like the next_attempt order of UploadQueue. */
+    @Override
+    public synchronized Item lease(List<String> excluded) {
+        Item item = lease(excluded, false);
+        return item != null ? item : lease(excluded, true);
+    }
+
+    private Item lease(List<String> excluded, boolean failed) {
+        for (Iterator<Item> it = items.iterator(); it.hasNext();) {
+            Item item = it.next();
+            if ((item.endpointFailures > 0) == failed && !excluded.contains(item.target)) {
+                it.remove();
+                return item;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void release(Item item) {
+        ++released;
+        items.addFirst(item);
+    }
+
+    @Override
+    public String target(Item item) {
+        return item.target;
+    }
+
+    @Override
+    public boolean isStopped() {
+        return stopped;
+    }
+}
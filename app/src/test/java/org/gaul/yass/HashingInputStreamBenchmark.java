@@ -0,0 +1,113 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per MB of hashing an upload with {@link HashingInputStream} while it is sent, against
+ * reading it once to hash it and again to send it.  Run with
+ * ./gradlew jmh -Pjmh=HashingInputStreamBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HashingInputStreamBenchmark {
+    private static final int LENGTH = 1024 * 1024;
+
+    /** Where the upload is read from. */
+    @Param({"memory", "file"})
+    public String source;
+
+    private final byte[] buffer = new byte[8192];
+    private byte[] content;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        content = new byte[LENGTH];
+        new Random(0).nextBytes(content);
+        file = File.createTempFile("hashing", null);
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(content);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] singlePass() throws IOException {
+        try (HashingInputStream is = new HashingInputStream(open())) {
+            send(is);
+            return is.md5();
+        }
+    }
+
+    @Benchmark
+    public byte[] doubleRead() throws IOException {
+        MessageDigest digest = HashingInputStream.newMd5();
+        try (InputStream is = open()) {
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        try (InputStream is = open()) {
+            send(is);
+        }
+        return digest.digest();
+    }
+
+    private InputStream open() throws IOException {
+        return source.equals("file") ? new FileInputStream(file) :
+                new ByteArrayInputStream(content);
+    }
+
+    /** Consume is like the SDK copying it to the connection. */
+    private void send(InputStream is) throws IOException {
+        while (is.read(buffer) != -1) {
+            // the bytes would go to the socket
+        }
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to page through a large prefix with {@link ObjectLister}, which is dominated by one
+ * round trip per page on a slow network.  Run with ./gradlew jmh -Pjmh=ObjectListerBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ObjectListerBenchmark {
+    private static final String BUCKET = "bucket";
+    private static final int KEYS = 5000;
+
+    @Param({"0", "50"})
+    public long latencyMillis;
+
+    @Param({"100", "1000"})
+    public int pageSize;
+
+    private FakeS3 s3;
+    private AmazonS3 client;
+
+    @Setup
+    public void setUp() throws Exception {
+        s3 = new FakeS3();
+        for (int i = 0; i < KEYS; ++i) {
+            s3.put(BUCKET, String.format("dir%02d/%06d.jpg", i % 50, i), new byte[0]);
+        }
+        s3.setLatency(latencyMillis).setMaxKeys(pageSize);
+        client = s3.newClient();
+    }
+
+    @TearDown
+    public void tearDown() {
+        s3.close();
+    }
+
+    @Benchmark
+    public int listAll() {
+        return list(false);
+    }
+
+    @Benchmark
+    public int listDelimited() {
+        return list(true);
+    }
+
+    private int list(boolean delimited) {
+        final int[] entries = {0};
+        ObjectLister.list(client, BUCKET, "", delimited, 0, ObjectLister.NO_STATS,
+                new ObjectLister.PageHandler() {
+                    @Override
+                    public boolean onPage(ObjectListing page) {
+                        entries[0] += page.getObjectSummaries().size() +
+                                page.getCommonPrefixes().size();
+                        return true;
+                    }
+                });
+        return entries[0];
+    }
+}
@@ -0,0 +1,113 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ObjectListerTest {
+    private static final String BUCKET = "bucket";
+
+    private FakeS3 s3;
+    private AmazonS3 client;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3().setMaxKeys(10);
+        s3.createBucket(BUCKET);
+        for (int i = 0; i < 25; ++i) {
+            s3.put(BUCKET, String.format("dir/%02d", i), new byte[i]);
+        }
+        s3.put(BUCKET, "dir/sub/a", new byte[1]);
+        s3.put(BUCKET, "dir/sub/b", new byte[1]);
+        s3.put(BUCKET, "other", new byte[1]);
+        client = s3.newClient();
+    }
+
+    @After
+    public void tearDown() {
+        s3.close();
+    }
+
+    @Test
+    public void testListsEveryPage() {
+        final List<String> keys = new ArrayList<>();
+        final AtomicInteger lists = new AtomicInteger();
+        assertTrue(ObjectLister.list(client, BUCKET, "dir/", false, 0, new ObjectLister.Stats() {
+            @Override
+            public void onList(long startNanos) {
+                lists.incrementAndGet();
+            }
+        }, new ObjectLister.PageHandler() {
+            @Override
+            public boolean onPage(ObjectListing page) {
+                for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                    keys.add(summary.getKey());
+                }
+                return true;
+            }
+        }));
+        assertEquals(27, keys.size());
+        assertEquals("dir/00", keys.get(0));
+        assertEquals("dir/sub/b", keys.get(26));
+        assertEquals(3, lists.get());
+    }
+
+    @Test
+    public void testDelimitedListsCommonPrefixes() {
+        final List<String> prefixes = new ArrayList<>();
+        final AtomicInteger objects = new AtomicInteger();
+        assertTrue(ObjectLister.list(client, BUCKET, "dir/", true, 0, ObjectLister.NO_STATS,
+                new ObjectLister.PageHandler() {
+                    @Override
+                    public boolean onPage(ObjectListing page) {
+                        prefixes.addAll(page.getCommonPrefixes());
+                        objects.addAndGet(page.getObjectSummaries().size());
+                        return true;
+                    }
+                }));
+        assertEquals(25, objects.get());
+        assertEquals(1, prefixes.size());
+        assertEquals("dir/sub/", prefixes.get(0));
+    }
+
+    @Test
+    public void testStopsAfterMaxPages() {
+        final AtomicInteger pages = new AtomicInteger();
+        assertFalse(ObjectLister.list(client, BUCKET, "", false, 2, ObjectLister.NO_STATS,
+                new ObjectLister.PageHandler() {
+                    @Override
+                    public boolean onPage(ObjectListing page) {
+                        pages.incrementAndGet();
+                        return true;
+                    }
+                }));
+        assertEquals(2, pages.get());
+    }
+}
@@ -0,0 +1,115 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to fetch a large object with {@link RangedDownload}.  With per-stream bandwidth and
+ * latency, concurrency 1 approximates a single GET and higher concurrency shows what parallel
+ * ranges gain.  Run with ./gradlew jmh -Pjmh=RangedDownloadBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class RangedDownloadBenchmark {
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "video.mp4";
+    private static final long LENGTH = 3 * RangedDownload.PART_SIZE;
+
+    private static final RangedDownload.Listener LISTENER = new RangedDownload.Listener() {
+        @Override
+        public void onProgress(long bytesTransferred) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void onFirstByte(long startNanos) {
+        }
+
+        @Override
+        public void onPartComplete(int part, long startNanos, long length) {
+        }
+    };
+
+    @Param({"1", "4"})
+    public int concurrency;
+
+    @Param({"0", "100"})
+    public long latencyMillis;
+
+    /** Per stream, 0 for unlimited. */
+    @Param({"0", "8388608"})
+    public long bytesPerSecond;
+
+    private FakeS3 s3;
+    private AmazonS3 client;
+    private ExecutorService executor;
+    private String eTag;
+    private File file;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] content = new byte[(int) LENGTH];
+        new Random(0).nextBytes(content);
+        eTag = UploadIndex.toHex(HashingInputStream.newMd5().digest(content));
+        s3 = new FakeS3();
+        s3.put(BUCKET, KEY, content);
+        s3.setLatency(latencyMillis).setBandwidth(bytesPerSecond);
+        client = s3.newClient();
+        executor = Executors.newFixedThreadPool(concurrency);
+        file = File.createTempFile("ranged", null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        executor.shutdownNow();
+        s3.close();
+    }
+
+    @Benchmark
+    public boolean download() throws Exception {
+        return RangedDownload.download(client, executor, concurrency, BUCKET, KEY, eTag,
+                LENGTH, new boolean[RangedDownload.numParts(LENGTH)], file, LISTENER);
+    }
+}
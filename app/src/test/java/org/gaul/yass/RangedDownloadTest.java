@@ -0,0 +1,186 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class RangedDownloadTest {
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "key";
+    private static final int CONCURRENCY = 4;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+    private FakeS3 s3;
+    private AmazonS3 client;
+    private byte[] content;
+    private long length;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3();
+        content = new byte[(int) (2 * RangedDownload.PART_SIZE + 12345)];
+        new Random(0).nextBytes(content);
+        length = content.length;
+        s3.put(BUCKET, KEY, content);
+        client = s3.newClient();
+        file = File.createTempFile("ranged", null);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        s3.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDownloadsEveryPart() throws Exception {
+        Recorder recorder = new Recorder(3);
+        boolean[] parts = new boolean[RangedDownload.numParts(length)];
+        assertEquals(3, parts.length);
+        assertTrue(RangedDownload.download(client, executor, CONCURRENCY, BUCKET, KEY,
+                eTag(), length, parts, file, recorder));
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(length, recorder.progress.get());
+        for (int part = 0; part < parts.length; ++part) {
+            assertEquals(1, recorder.completed.get(part));
+        }
+    }
+
+    @Test
+    public void testSkipsCompletedParts() throws Exception {
+        Recorder recorder = new Recorder(3);
+        boolean[] parts = {true, false, true};
+        assertTrue(RangedDownload.download(client, executor, CONCURRENCY, BUCKET, KEY,
+                eTag(), length, parts, file, recorder));
+        assertEquals(1, s3.requestCount());
+        assertEquals(0, recorder.completed.get(0));
+        assertEquals(1, recorder.completed.get(1));
+        assertEquals(length, recorder.progress.get());
+    }
+
+    @Test
+    public void testChangedObject() throws Exception {
+        try {
+            RangedDownload.download(client, executor, CONCURRENCY, BUCKET, KEY, "0123",
+                    length, new boolean[3], file, new Recorder(3));
+            fail("expected ChangedException");
+        } catch (RangedDownload.ChangedException ce) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testServerError() throws Exception {
+        s3.failEvery(2, 503);
+        Recorder recorder = new Recorder(3);
+        try {
+            RangedDownload.download(client, executor, CONCURRENCY, BUCKET, KEY, eTag(),
+                    length, new boolean[3], file, recorder);
+            fail("expected AmazonServiceException");
+        } catch (AmazonServiceException ase) {
+            assertEquals(503, ase.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testTruncatedRange() throws Exception {
+        s3.truncateEvery(1);
+        try {
+            RangedDownload.download(client, executor, CONCURRENCY, BUCKET, KEY, eTag(),
+                    length, new boolean[3], file, new Recorder(3));
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        s3.setBandwidth(1024 * 1024);
+        Recorder recorder = new Recorder(3);
+        recorder.cancelAfter = RangedDownload.PART_SIZE / 4;
+        assertFalse(RangedDownload.download(client, executor, CONCURRENCY, BUCKET, KEY,
+                eTag(), length, new boolean[3], file, recorder));
+        for (int part = 0; part < 3; ++part) {
+            assertEquals(0, recorder.completed.get(part));
+        }
+    }
+
+    private String eTag() {
+        return UploadIndex.toHex(HashingInputStream.newMd5().digest(content));
+    }
+
+    private static final class Recorder implements RangedDownload.Listener {
+        final AtomicLong progress = new AtomicLong();
+        final AtomicIntegerArray completed;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        volatile long cancelAfter = Long.MAX_VALUE;
+
+        Recorder(int numParts) {
+            completed = new AtomicIntegerArray(numParts);
+        }
+
+        @Override
+        public void onProgress(long bytesTransferred) {
+            // workers may report out of order
+            long previous;
+            do {
+                previous = progress.get();
+            } while (previous < bytesTransferred &&
+                    !progress.compareAndSet(previous, bytesTransferred));
+            if (bytesTransferred >= cancelAfter) {
+                cancelled.set(true);
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        @Override
+        public void onFirstByte(long startNanos) {
+        }
+
+        @Override
+        public void onPartComplete(int part, long startNanos, long length) {
+            completed.incrementAndGet(part);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Copy of an in-memory response into a file with {@link TransferEngine} against the 4 KB
+ * read/write loop with one progress callback per chunk which it replaced.  Add -prof gc to
+ * compare allocations, e.g., ./gradlew jmh -Pjmh='TransferEngineBenchmark -prof gc'.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransferEngineBenchmark {
+    @Param({"262144", "8388608"})
+    public int length;
+
+    private byte[] content;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        content = new byte[length];
+        new Random(0).nextBytes(content);
+        file = File.createTempFile("transfer", null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long transferEngine(final Blackhole blackhole) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                InputStream is = new ByteArrayInputStream(content)) {
+            return TransferEngine.copy(is, raf.getChannel(), 0, length,
+                    new TransferEngine.Callback() {
+                        @Override
+                        public void onWritten(long position, int count) {
+                            blackhole.consume(position);
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return false;
+                        }
+                    });
+        }
+    }
+
+    @Benchmark
+    public long legacyLoop(Blackhole blackhole) throws IOException {
+        long position = 0;
+        try (FileOutputStream os = new FileOutputStream(file);
+                InputStream is = new ByteArrayInputStream(content)) {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                os.write(buffer, 0, count);
+                position += count;
+                blackhole.consume(position);
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for {@link UploadDrain} to empty a queue of photos with PUTs.  Run with
+ * ./gradlew jmh -Pjmh=UploadDrainBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UploadDrainBenchmark {
+    private static final String BUCKET = "bucket";
+    private static final int ITEMS = 32;
+    private static final int ITEM_SIZE = 256 * 1024;
+
+    @Param({"1", "2", "4"})
+    public int concurrency;
+
+    @Param({"0", "100"})
+    public long latencyMillis;
+
+    private FakeS3 s3;
+    private ExecutorService executor;
+    private UploadDrain.Uploader<FakeUploadQueue.Item> uploader;
+    private byte[] content;
+
+    @Setup
+    public void setUp() throws Exception {
+        s3 = new FakeS3();
+        s3.createBucket(BUCKET);
+        s3.setLatency(latencyMillis);
+        final AmazonS3 client = s3.newClient();
+        final CircuitBreaker breaker = new CircuitBreaker();
+        executor = Executors.newFixedThreadPool(concurrency);
+        content = new byte[ITEM_SIZE];
+        uploader = new UploadDrain.Uploader<FakeUploadQueue.Item>() {
+            @Override
+            public CircuitBreaker breaker(String target) {
+                return breaker;
+            }
+
+            @Override
+            public void reject(FakeUploadQueue.Item item) {
+                throw new IllegalStateException("No such target: " + item.target);
+            }
+
+            @Override
+            public void upload(FakeUploadQueue.Item item) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(item.content.length);
+                client.putObject(BUCKET, item.key, new ByteArrayInputStream(item.content),
+                        metadata);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        s3.close();
+    }
+
+    @Benchmark
+    public boolean drain() throws Exception {
+        FakeUploadQueue queue = new FakeUploadQueue();
+        for (int i = 0; i < ITEMS; ++i) {
+            queue.add(new FakeUploadQueue.Item("profile", "IMG_" + i + ".jpg", content));
+        }
+        return new UploadDrain<>(queue, uploader).run(executor, concurrency);
+    }
+}
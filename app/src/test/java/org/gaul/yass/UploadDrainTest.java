@@ -0,0 +1,252 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class UploadDrainTest {
+    private static final String BUCKET = "bucket";
+    private static final int CONCURRENCY = 4;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+    private final FakeUploadQueue queue = new FakeUploadQueue();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testUploadsEveryItem() throws Exception {
+        try (FakeS3 s3 = new FakeS3()) {
+            s3.createBucket(BUCKET);
+            s3.setLatency(10);
+            final AmazonS3 client = s3.newClient();
+            for (int i = 0; i < 20; ++i) {
+                queue.add(new FakeUploadQueue.Item("profile", "key-" + i, new byte[i]));
+            }
+            final CircuitBreaker breaker = new CircuitBreaker();
+            assertTrue(new UploadDrain<>(queue, new Uploader() {
+                @Override
+                public CircuitBreaker breaker(String target) {
+                    return breaker;
+                }
+
+                @Override
+                public void upload(FakeUploadQueue.Item item) {
+                    super.upload(item);
+                    ObjectMetadata metadata = new ObjectMetadata();
+                    metadata.setContentLength(item.content.length);
+                    client.putObject(BUCKET, item.key, new ByteArrayInputStream(item.content),
+                            metadata);
+                }
+            }).run(executor, CONCURRENCY));
+            assertEquals(0, queue.size());
+            assertEquals(20, s3.size(BUCKET));
+            assertArrayEquals(new byte[7], s3.get(BUCKET, "key-7"));
+        }
+    }
+
+    @Test
+    public void testOpenBreakerLeavesItemsQueued() throws Exception {
+        addItems("up", 5);
+        addItems("down", 5);
+        Uploader uploader = new Uploader();
+        CircuitBreaker down = open(uploader.breaker("down"), System.currentTimeMillis());
+        assertTrue(new UploadDrain<>(queue, uploader).run(executor, CONCURRENCY));
+        assertEquals(5, uploader.uploads("up"));
+        assertEquals(0, uploader.uploads("down"));
+        assertEquals(5, queue.size());
+        // only the first item of the open target is leased before it is excluded
+        assertEquals(1, queue.released());
+        assertEquals(CircuitBreaker.OPEN, down.state());
+    }
+
+    @Test
+    public void testHalfOpenBreakerSendsOneProbe() throws Exception {
+        addItems("flaky", 5);
+        Uploader uploader = new Uploader() {
+            @Override
+            public void upload(FakeUploadQueue.Item item) {
+                super.upload(item);
+                breaker(item.target).recordFailure(System.currentTimeMillis());
+            }
+        };
+        // open long enough ago that the next request probes
+        open(uploader.breaker("flaky"), 0);
+        assertTrue(new UploadDrain<>(queue, uploader).run(executor, CONCURRENCY));
+        assertEquals(1, uploader.uploads("flaky"));
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void testEndpointFailureBacksOffItem() throws Exception {
+        try (FakeS3 s3 = new FakeS3()) {
+            s3.createBucket(BUCKET);
+            s3.failKey("poison", 500);
+            final AmazonS3 client = s3.newClient();
+            final CircuitBreaker breaker = new CircuitBreaker();
+            Uploader uploader = new Uploader() {
+                @Override
+                public CircuitBreaker breaker(String target) {
+                    return breaker;
+                }
+
+                @Override
+                public void upload(FakeUploadQueue.Item item) {
+                    super.upload(item);
+                    ObjectMetadata metadata = new ObjectMetadata();
+                    metadata.setContentLength(item.content.length);
+                    try {
+                        client.putObject(BUCKET, item.key,
+                                new ByteArrayInputStream(item.content), metadata);
+                        breaker.recordSuccess();
+                    } catch (AmazonClientException ace) {
+                        assertTrue(UploadDrain.isEndpointFailure(ace));
+                        breaker.recordFailure(System.currentTimeMillis());
+                        queue.failEndpoint(item);
+                    }
+                }
+            };
+            queue.add(new FakeUploadQueue.Item("profile", "poison", new byte[1]));
+            addItems("profile", 9);
+            assertTrue(new UploadDrain<>(queue, uploader).run(executor, CONCURRENCY));
+            // tried once instead of being leased again until the breaker opens
+            assertEquals(10, uploader.uploads("profile"));
+            assertEquals(9, s3.size(BUCKET));
+            assertEquals(CircuitBreaker.CLOSED, breaker.state());
+
+            // the probe of the recovering endpoint picks a row which did not fail
+            queue.expireBackoffs();
+            queue.add(new FakeUploadQueue.Item("profile", "late", new byte[1]));
+            open(breaker, 0);
+            assertTrue(new UploadDrain<>(queue, uploader).run(executor, 1));
+            assertEquals("late", uploader.keys.get(10));
+            assertEquals("poison", uploader.keys.get(11));
+            assertEquals(10, s3.size(BUCKET));
+
+            // a row the endpoint always fails is dead-lettered eventually
+            for (int i = 2; i < UploadQueue.MAX_ENDPOINT_FAILURES; ++i) {
+                queue.expireBackoffs();
+                breaker.recordSuccess();
+                assertTrue(new UploadDrain<>(queue, uploader).run(executor, CONCURRENCY));
+            }
+            assertEquals(1, queue.dead());
+            assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    public void testRejectsUnknownTarget() throws Exception {
+        addItems("gone", 3);
+        Uploader uploader = new Uploader() {
+            @Override
+            public CircuitBreaker breaker(String target) {
+                return null;
+            }
+        };
+        assertTrue(new UploadDrain<>(queue, uploader).run(executor, CONCURRENCY));
+        assertEquals(3, uploader.rejected.get());
+        assertEquals(0, uploader.uploads("gone"));
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        addItems("profile", 10);
+        Uploader uploader = new Uploader() {
+            @Override
+            public void upload(FakeUploadQueue.Item item) {
+                super.upload(item);
+                queue.stop();
+            }
+        };
+        assertFalse(new UploadDrain<>(queue, uploader).run(executor, 1));
+        assertEquals(1, uploader.uploads("profile"));
+    }
+
+    private void addItems(String target, int count) {
+        for (int i = 0; i < count; ++i) {
+            queue.add(new FakeUploadQueue.Item(target, target + "-" + i, new byte[0]));
+        }
+    }
+
+    private static CircuitBreaker open(CircuitBreaker breaker, long now) {
+        while (!breaker.recordFailure(now)) {
+            // count failures until the threshold
+        }
+        return breaker;
+    }
+
+    /** Records uploads, with one breaker per target. */
+    private static class Uploader implements UploadDrain.Uploader<FakeUploadQueue.Item> {
+        final AtomicInteger rejected = new AtomicInteger();
+        private final Map<String, CircuitBreaker> breakers = new HashMap<>();
+        private final List<String> uploads = new ArrayList<>();
+        final List<String> keys = new ArrayList<>();
+
+        @Override
+        public synchronized CircuitBreaker breaker(String target) {
+            CircuitBreaker breaker = breakers.get(target);
+            if (breaker == null) {
+                breaker = new CircuitBreaker();
+                breakers.put(target, breaker);
+            }
+            return breaker;
+        }
+
+        @Override
+        public void reject(FakeUploadQueue.Item item) {
+            rejected.incrementAndGet();
+        }
+
+        @Override
+        public void upload(FakeUploadQueue.Item item) {
+            synchronized (this) {
+                uploads.add(item.target);
+                keys.add(item.key);
+            }
+        }
+
+        synchronized int uploads(String target) {
+            int count = 0;
+            for (String upload : uploads) {
+                if (upload.equals(target)) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+    }
+}
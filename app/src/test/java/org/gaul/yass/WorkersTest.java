@@ -0,0 +1,96 @@
+// Copyright 2017 Andrew Gaul <andrew@gaul.org>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.gaul.yass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.After;
+import org.junit.Test;
+
+public final class WorkersTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRunsEveryIndexOnce() throws Exception {
+        final AtomicIntegerArray runs = new AtomicIntegerArray(100);
+        assertTrue(Workers.run(executor, 4, runs.length(), new Workers.Task() {
+            @Override
+            public boolean run(int index) {
+                runs.incrementAndGet(index);
+                return true;
+            }
+        }));
+        for (int i = 0; i < runs.length(); ++i) {
+            assertEquals(1, runs.get(i));
+        }
+    }
+
+    @Test
+    public void testFailureStopsOtherWorkers() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        try {
+            Workers.run(executor, 4, 1000, new Workers.Task() {
+                @Override
+                public boolean run(int index) throws IOException {
+                    runs.incrementAndGet();
+                    if (index == 0) {
+                        throw new IOException("expected");
+                    }
+                    sleep(10);
+                    return true;
+                }
+            });
+            fail("expected IOException");
+        } catch (IOException ioe) {
+            assertEquals("expected", ioe.getMessage());
+        }
+        assertTrue("ran " + runs.get() + " tasks", runs.get() < 1000);
+    }
+
+    @Test
+    public void testStoppedTaskReturnsFalse() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        assertFalse(Workers.run(executor, 1, 10, new Workers.Task() {
+            @Override
+            public boolean run(int index) {
+                return runs.incrementAndGet() < 3;
+            }
+        }));
+        assertEquals(3, runs.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}